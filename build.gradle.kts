@@ -1,4 +1,7 @@
-plugins { id("io.vacco.oss.gitflow") version "0.9.8" }
+plugins {
+  id("io.vacco.oss.gitflow") version "0.9.8"
+  id("me.champeau.jmh") version "0.7.2"
+}
 
 group = "io.vacco.bertastic"
 version = "1.5.0"
@@ -14,4 +17,17 @@ dependencies {
   api("org.tensorflow:tensorflow-core-platform:0.5.0")
   testImplementation("com.robrua.nlp.models:easy-bert-uncased-L-12-H-768-A-12:1.0.0")
   testImplementation("com.google.code.gson:gson:2.10.1")
+  jmh("com.robrua.nlp.models:easy-bert-uncased-L-12-H-768-A-12:1.0.0")
+  jmh("com.google.code.gson:gson:2.10.1")
+}
+
+jmh { // ./gradlew jmh [-PjmhIncludes=BtTokenizerBench] [-PbertasticModel=<model dir or archive>]
+  jmhVersion.set("1.36")
+  profilers.add("gc")
+  fork.set(1)
+  warmupIterations.set(3)
+  iterations.set(5)
+  resultFormat.set("JSON")
+  (findProperty("jmhIncludes") as String?)?.let { includes.add(it) }
+  (findProperty("bertasticModel") as String?)?.let { jvmArgsAppend.add("-Dbertastic.model=$it") }
 }
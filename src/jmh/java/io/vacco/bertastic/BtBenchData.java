@@ -0,0 +1,72 @@
+package io.vacco.bertastic;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Objects;
+
+/**
+ * Model and corpus loading shared by the benchmarks.
+ * <p>
+ * The model is the easy-bert test model on the benchmark classpath, extracted through a {@link BtModelCache} so only the first
+ * run pays for extraction. Set the {@code bertastic.model} system property to benchmark another model, either an extracted model
+ * directory or a model archive.
+ */
+class BtBenchData {
+
+  static final String MODEL_RESOURCE = "/com/robrua/nlp/easy-bert/bert-uncased-L-12-H-768-A-12";
+
+  static BtModelSource modelSource() throws IOException {
+    var override = System.getProperty("bertastic.model");
+    if (override != null && new File(override).isDirectory()) {
+      var source = BtModelSource.from(new File(override));
+      source.deleteOnClose = false;
+      return source;
+    }
+    var archive = override != null
+        ? new File(override).toURI().toURL()
+        : Objects.requireNonNull(BtBenchData.class.getResource(MODEL_RESOURCE), "Benchmark model not on classpath");
+    return BtModelCache.inUserHome().get(archive);
+  }
+
+  /**
+   * @param name one of {@code en}, {@code multilingual} or {@code cjk}
+   * @return the lines of the corpus
+   */
+  static String[] corpus(String name) throws IOException {
+    var in = Objects.requireNonNull(BtBenchData.class.getResourceAsStream("/corpus/" + name + ".txt"), "No corpus: " + name);
+    var lines = new ArrayList<String>();
+    try (var reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8))) {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        if (!line.isBlank()) {
+          lines.add(line);
+        }
+      }
+    }
+    return lines.toArray(new String[0]);
+  }
+
+  /**
+   * Builds sequences of roughly a given number of words by joining corpus lines, cycling through the corpus.
+   */
+  static String[] sequences(String[] corpus, int count, int words) {
+    var out = new String[count];
+    int line = 0;
+    for (int i = 0; i < count; i++) {
+      var sb = new StringBuilder();
+      int n = 0;
+      while (n < words) {
+        for (var word : corpus[line++ % corpus.length].split(" ")) {
+          if (n++ == words) {
+            break;
+          }
+          sb.append(word).append(' ');
+        }
+      }
+      out[i] = sb.toString().trim();
+    }
+    return out;
+  }
+
+}
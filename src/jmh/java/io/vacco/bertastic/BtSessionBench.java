@@ -0,0 +1,84 @@
+package io.vacco.bertastic;
+
+import com.google.gson.Gson;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Session throughput at several batch sizes and sequence lengths: building the native input tensors alone, and end-to-end
+ * pooled embeddings.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class BtSessionBench {
+
+  @Param({"en", "multilingual", "cjk"})
+  public String corpus;
+
+  @Param({"1", "8", "32"})
+  public int batchSize;
+
+  /** Approximate words per sequence. */
+  @Param({"8", "32", "96"})
+  public int words;
+
+  @Param({"MODEL_MAX", "BATCH_LONGEST"})
+  public BtPadding padding;
+
+  private BtSession session;
+  private String[] sequences;
+  private BtEncoding ids;
+  private int[] batch;
+  private int sequenceLength;
+
+  @Setup
+  public void setup() throws Exception {
+    var options = new BtSessionOptions();
+    options.padding = padding;
+    session = BtSession.load(BtBenchData.modelSource(), new Gson()::fromJson, options);
+    sequences = BtBenchData.sequences(BtBenchData.corpus(corpus), batchSize, words);
+    ids = BtEncoding.of(encode(sequences));
+    batch = new int[batchSize];
+    for (int i = 0; i < batchSize; i++) {
+      batch[i] = i;
+    }
+    sequenceLength = session.paddedLength(ids, batch);
+  }
+
+  @TearDown
+  public void tearDown() {
+    session.close();
+  }
+
+  @Benchmark
+  public void getInputs(Blackhole bh) {
+    try (var inputs = session.getInputs(ids, batch, sequenceLength)) {
+      bh.consume(inputs);
+    }
+  }
+
+  @Benchmark
+  public void encodeAndGetInputs(Blackhole bh) {
+    var encoded = BtEncoding.of(encode(sequences));
+    try (var inputs = session.getInputs(encoded, batch, session.paddedLength(encoded, batch))) {
+      bh.consume(inputs);
+    }
+  }
+
+  private int[][] encode(String[] sequences) {
+    var encoded = new int[sequences.length][];
+    for (int i = 0; i < sequences.length; i++) {
+      encoded[i] = session.encode(sequences[i]);
+    }
+    return encoded;
+  }
+
+  @Benchmark
+  public float[][] embedSequences() {
+    return session.embedSequences(sequences);
+  }
+
+}
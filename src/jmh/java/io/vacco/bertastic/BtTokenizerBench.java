@@ -0,0 +1,83 @@
+package io.vacco.bertastic;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tokenizer throughput over whole corpora. Each operation tokenizes every line of the corpus once.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class BtTokenizerBench {
+
+  @Param({"en", "multilingual", "cjk"})
+  public String corpus;
+
+  private String[] lines, basicLines;
+  private String[][] fullTokens;
+  private BtBasic basic;
+  private BtWordPiece wordPiece;
+  private BtFull full;
+
+  @Setup
+  public void setup() throws Exception {
+    var source = BtBenchData.modelSource();
+    lines = BtBenchData.corpus(corpus);
+    basic = new BtBasic(true);
+    full = new BtFull(source.vocabFile, true);
+    wordPiece = new BtWordPiece(full.getVocabulary());
+    basicLines = new String[lines.length];
+    fullTokens = new String[lines.length][];
+    for (int i = 0; i < lines.length; i++) {
+      basicLines[i] = String.join(" ", basic.tokenize(lines[i]));
+      fullTokens[i] = full.tokenize(lines[i]);
+    }
+  }
+
+  @Benchmark
+  public void basicTokenize(Blackhole bh) {
+    for (var line : lines) {
+      bh.consume(basic.tokenize(line));
+    }
+  }
+
+  @Benchmark
+  public void basicTokenizeBuffer(Blackhole bh) {
+    var buffer = new BtTokenBuffer();
+    for (var line : lines) {
+      bh.consume(basic.tokenize(line, buffer).size());
+    }
+  }
+
+  @Benchmark
+  public void wordPieceTokenize(Blackhole bh) {
+    for (var line : basicLines) {
+      bh.consume(wordPiece.tokenize(line));
+    }
+  }
+
+  @Benchmark
+  public void fullTokenize(Blackhole bh) {
+    for (var line : lines) {
+      bh.consume(full.tokenize(line));
+    }
+  }
+
+  @Benchmark
+  public void fullConvert(Blackhole bh) {
+    for (var tokens : fullTokens) {
+      bh.consume(full.convert(tokens));
+    }
+  }
+
+  @Benchmark
+  public void fullEncode(Blackhole bh) {
+    for (var line : lines) {
+      bh.consume(full.encode(line));
+    }
+  }
+
+}
@@ -1,48 +1,55 @@
 package io.vacco.bertastic;
 
 import java.text.Normalizer;
-import java.util.Arrays;
-import java.util.Set;
-import java.util.stream.Stream;
+import java.util.Locale;
 
 /**
  * A port of the BERT BasicTokenizer in the <a href="https://github.com/google-research/bert">BERT GitHub Repository</a>.
  * <p>
  * The BasicTokenizer is used to segment input sequences into linguistic tokens, which in most cases are words. These tokens can be fed to the
  * {@link BtWordPiece} to further segment them into the BERT tokens that are used for input into the model.
+ * <p>
+ * Text cleanup, Chinese character splitting, whitespace splitting, accent stripping and punctuation splitting all happen in a single
+ * pass over the sequence, using precomputed character class tables for the Basic Multilingual Plane. Words made only of ASCII characters
+ * skip Unicode normalization entirely.
  *
  * @author Rob Rua (https://github.com/robrua)
  * @see <a href="https://github.com/google-research/bert/blob/master/tokenization.py">The Python tokenization code this is ported from</a>
  */
 public class BtBasic extends BtTokenizer {
 
+  private static final int DROP = 1, WHITESPACE = 2, PUNCTUATION = 4, CHINESE = 8;
+  private static final byte[] BMP_CLASSES = new byte[Character.MAX_VALUE + 1];
+
+  private static final ThreadLocal<BtTokenBuffer> BUFFERS = ThreadLocal.withInitial(BtTokenBuffer::new);
+
+  static {
+    for (int codePoint = 0; codePoint <= Character.MAX_VALUE; codePoint++) {
+      BMP_CLASSES[codePoint] = (byte) classify(codePoint);
+    }
+  }
+
   private final boolean doLowerCase;
 
-  private static final Set<Integer> CONTROL_CATEGORIES = Set.of((int) Character.CONTROL,
-      (int) Character.FORMAT,
-      (int) Character.PRIVATE_USE,
-      (int) Character.SURROGATE,
-      (int) Character.UNASSIGNED); // In bert-tensorflow this is any category where the Unicode specification starts with "C"
-
-  private static final Set<Integer> PUNCTUATION_CATEGORIES = Set.of((int) Character.CONNECTOR_PUNCTUATION,
-      (int) Character.DASH_PUNCTUATION,
-      (int) Character.END_PUNCTUATION,
-      (int) Character.FINAL_QUOTE_PUNCTUATION,
-      (int) Character.INITIAL_QUOTE_PUNCTUATION,
-      (int) Character.OTHER_PUNCTUATION,
-      (int) Character.START_PUNCTUATION); // In bert-tensorflow this is any category where the Unicode specification starts with "P"
-
-  private static final Set<Integer> SAFE_CONTROL_CHARACTERS = Set.of((int) '\t', (int) '\n', (int) '\r');
-  private static final Set<Integer> STRIP_CHARACTERS = Set.of(0, 0xFFFD);
-  private static final Set<Integer> WHITESPACE_CHARACTERS = Set.of((int) ' ', (int) '\t', (int) '\n', (int) '\r');
-
-  private static String cleanText(String sequence) {
-    var builder = new StringBuilder();
-    sequence.codePoints()
-        .filter((int codePoint) -> !STRIP_CHARACTERS.contains(codePoint) && !isControl(codePoint))
-        .map((final int codePoint) -> isWhitespace(codePoint) ? ' ' : codePoint)
-        .forEachOrdered((final int codePoint) -> builder.append(Character.toChars(codePoint)));
-    return builder.toString();
+  private static int classify(final int codePoint) {
+    int cls = 0;
+    if (codePoint == 0 || codePoint == 0xFFFD || isControl(codePoint)) {
+      cls |= DROP;
+    }
+    if (isWhitespace(codePoint)) {
+      cls |= WHITESPACE;
+    }
+    if (isPunctuation(codePoint)) {
+      cls |= PUNCTUATION;
+    }
+    if (isChineseCharacter(codePoint)) {
+      cls |= CHINESE;
+    }
+    return cls;
+  }
+
+  private static int classOf(final int codePoint) {
+    return codePoint <= Character.MAX_VALUE ? BMP_CLASSES[codePoint] : classify(codePoint);
   }
 
   private static boolean isChineseCharacter(final int codePoint) {
@@ -57,96 +64,174 @@ public class BtBasic extends BtTokenizer {
   }
 
   private static boolean isControl(final int codePoint) {
-    return !SAFE_CONTROL_CHARACTERS.contains(codePoint) && CONTROL_CATEGORIES.contains(Character.getType(codePoint));
+    if (codePoint == '\t' || codePoint == '\n' || codePoint == '\r') {
+      return false;
+    }
+    switch (Character.getType(codePoint)) { // In bert-tensorflow this is any category where the Unicode specification starts with "C"
+      case Character.CONTROL:
+      case Character.FORMAT:
+      case Character.PRIVATE_USE:
+      case Character.SURROGATE:
+      case Character.UNASSIGNED:
+        return true;
+      default:
+        return false;
+    }
   }
 
   private static boolean isPunctuation(final int codePoint) {
-    return codePoint >= 33 && codePoint <= 47 ||
+    if (codePoint >= 33 && codePoint <= 47 ||
         codePoint >= 58 && codePoint <= 64 ||
         codePoint >= 91 && codePoint <= 96 ||
-        codePoint >= 123 && codePoint <= 126 ||
-        PUNCTUATION_CATEGORIES.contains(Character.getType(codePoint));
-  }
-
-  private static boolean isWhitespace(int codePoint) {
-    return WHITESPACE_CHARACTERS.contains(codePoint) || Character.SPACE_SEPARATOR == Character.getType(codePoint);
-  }
-
-  private static Stream<String> splitOnPunctuation(final String token) {
-    final Stream.Builder<String> stream = Stream.builder();
-    final StringBuilder builder = new StringBuilder();
-    token.codePoints().forEachOrdered((int codePoint) -> {
-      if (isPunctuation(codePoint)) {
-        stream.accept(builder.toString());
-        builder.setLength(0);
-        stream.accept(String.valueOf(Character.toChars(codePoint)));
-      } else {
-        builder.append(Character.toChars(codePoint));
-      }
-    });
-    if (builder.length() > 0) {
-      stream.accept(builder.toString());
+        codePoint >= 123 && codePoint <= 126) {
+      return true;
+    }
+    switch (Character.getType(codePoint)) { // In bert-tensorflow this is any category where the Unicode specification starts with "P"
+      case Character.CONNECTOR_PUNCTUATION:
+      case Character.DASH_PUNCTUATION:
+      case Character.END_PUNCTUATION:
+      case Character.FINAL_QUOTE_PUNCTUATION:
+      case Character.INITIAL_QUOTE_PUNCTUATION:
+      case Character.OTHER_PUNCTUATION:
+      case Character.START_PUNCTUATION:
+        return true;
+      default:
+        return false;
     }
-    return stream.build();
   }
 
-  private static String stripAccents(String token) {
-    final StringBuilder builder = new StringBuilder();
-    Normalizer.normalize(token, Normalizer.Form.NFD).codePoints()
-        .filter((final int codePoint) -> Character.NON_SPACING_MARK != Character.getType(codePoint))
-        .forEachOrdered((final int codePoint) -> builder.append(Character.toChars(codePoint)));
-    return builder.toString();
+  private static boolean isWhitespace(final int codePoint) {
+    return codePoint == ' ' || codePoint == '\t' || codePoint == '\n' || codePoint == '\r' ||
+        Character.SPACE_SEPARATOR == Character.getType(codePoint);
   }
 
-  private static String tokenizeChineseCharacters(String sequence) {
-    final StringBuilder builder = new StringBuilder();
-    sequence.codePoints().forEachOrdered((final int codePoint) -> {
-      if (isChineseCharacter(codePoint)) {
-        builder.append(' ');
-        builder.append(Character.toChars(codePoint));
-        builder.append(' ');
-      } else {
-        builder.append(Character.toChars(codePoint));
-      }
-    });
-    return builder.toString();
+  /** Locales where lower-casing ASCII text differs from the plain A-Z mapping (dotted/dotless i). */
+  static boolean hasAsciiLowerCase(final Locale locale) {
+    var language = locale.getLanguage();
+    return !"tr".equals(language) && !"az".equals(language);
   }
 
   /**
    * Creates a BERT {@link BtBasic}
    *
    * @param doLowerCase whether to convert sequences to lower case during tokenization
-   * 
+   *
    */
   public BtBasic(final boolean doLowerCase) {
     this.doLowerCase = doLowerCase;
   }
 
-  private String stripAndSplit(String token) {
+  private void stripAccents(final BtTokenBuffer out, final int start, final boolean ascii, final boolean asciiLowerCase) {
+    var chars = out.chars();
+    if (ascii && asciiLowerCase) {
+      for (int i = start; i < out.length(); i++) {
+        if (chars[i] >= 'A' && chars[i] <= 'Z') {
+          chars[i] += 'a' - 'A';
+        }
+      }
+      return;
+    }
+    var word = Normalizer.normalize(new String(chars, start, out.length() - start).toLowerCase(), Normalizer.Form.NFD);
+    out.setLength(start);
+    for (int i = 0; i < word.length(); ) {
+      int codePoint = word.codePointAt(i);
+      i += Character.charCount(codePoint);
+      if (Character.NON_SPACING_MARK != Character.getType(codePoint)) {
+        out.append(codePoint);
+      }
+    }
+  }
+
+  private void endWord(final BtTokenBuffer out, final int start, final boolean ascii, final boolean asciiLowerCase) {
     if (doLowerCase) {
-      token = stripAccents(token.toLowerCase());
+      stripAccents(out, start, ascii, asciiLowerCase);
+    }
+    var chars = out.chars();
+    int end = out.length();
+    int tokens = out.size();
+    int pieceStart = start;
+    for (int i = start; i < end; ) {
+      int codePoint = Character.codePointAt(chars, i, end);
+      int next = i + Character.charCount(codePoint);
+      if ((classOf(codePoint) & PUNCTUATION) != 0) {
+        if (i > pieceStart) {
+          out.addToken(i);
+        }
+        out.addToken(next);
+        pieceStart = next;
+      }
+      i = next;
+    }
+    if (end > pieceStart || out.size() == tokens) {
+      out.addToken(end); // A word that normalizes to nothing still yields an empty token, as in the Python implementation
+    }
+  }
+
+  /**
+   * Tokenizes a single sequence into a reusable buffer, without creating intermediate strings
+   *
+   * @param sequence the sequence to tokenize
+   * @param out the buffer to write tokens into. It's cleared first.
+   * @return {@code out}
+   */
+  public BtTokenBuffer tokenize(final String sequence, final BtTokenBuffer out) {
+    out.clear();
+    boolean asciiLowerCase = doLowerCase && hasAsciiLowerCase(Locale.getDefault());
+    boolean ascii = true;
+    int wordStart = -1;
+    int words = 0;
+    for (int i = 0; i < sequence.length(); ) {
+      int codePoint = sequence.codePointAt(i);
+      i += Character.charCount(codePoint);
+      int cls = classOf(codePoint);
+      if ((cls & DROP) != 0) {
+        continue;
+      }
+      if ((cls & (WHITESPACE | CHINESE)) != 0 && wordStart != -1) {
+        endWord(out, wordStart, ascii, asciiLowerCase);
+        wordStart = -1;
+        words++;
+      }
+      if ((cls & WHITESPACE) != 0) {
+        continue;
+      }
+      if (wordStart == -1) {
+        wordStart = out.length();
+        ascii = true;
+      }
+      if (codePoint < 0x80) {
+        out.append((char) codePoint);
+      } else {
+        out.append(codePoint);
+        ascii = false;
+      }
+      if ((cls & CHINESE) != 0) {
+        endWord(out, wordStart, false, asciiLowerCase);
+        wordStart = -1;
+        words++;
+      }
     }
-    return String.join(" ", splitOnPunctuation(token).toArray(String[]::new));
+    if (wordStart != -1) {
+      endWord(out, wordStart, ascii, asciiLowerCase);
+      words++;
+    }
+    if (words == 0) {
+      out.addToken(0);
+    }
+    return out;
   }
 
   @Override
   public String[][] tokenize(final String ... sequences) {
-    return Arrays.stream(sequences)
-        .map(BtBasic::cleanText)
-        .map(BtBasic::tokenizeChineseCharacters)
-        .map((final String sequence) -> whitespaceTokenize(sequence).toArray(String[]::new))
-        .map((final String[] tokens) -> Arrays.stream(tokens)
-            .map(this::stripAndSplit)
-            .flatMap(BtBasic::whitespaceTokenize)
-            .toArray(String[]::new))
-        .toArray(String[][]::new);
+    var out = new String[sequences.length][];
+    for (int i = 0; i < sequences.length; i++) {
+      out[i] = tokenize(sequences[i]);
+    }
+    return out;
   }
 
   @Override
   public String[] tokenize(final String sequence) {
-    return whitespaceTokenize(tokenizeChineseCharacters(cleanText(sequence)))
-        .map(this::stripAndSplit)
-        .flatMap(BtBasic::whitespaceTokenize)
-        .toArray(String[]::new);
+    return tokenize(sequence, BUFFERS.get()).toArray();
   }
 }
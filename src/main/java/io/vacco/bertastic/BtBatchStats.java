@@ -0,0 +1,51 @@
+package io.vacco.bertastic;
+
+/**
+ * Sizes and stage timings of a single batch run through the model, as reported to a {@link BtMetricsListener}.
+ */
+public class BtBatchStats {
+
+  /** Number of sequences in the batch. */
+  public final int sequences;
+
+  /** Padded length of every sequence in the batch. */
+  public final int sequenceLength;
+
+  /** Number of input positions holding tokens, including the start and separator tokens. */
+  public final long realTokens;
+
+  /** Number of input positions, padding included. */
+  public final long paddedTokens;
+
+  /** Bytes of native memory held by the input and output tensors. */
+  public final long tensorBytes;
+
+  /** Time spent writing inputIds, the input mask and segmentIds into native tensors. */
+  public final long inputsNanos;
+
+  /** Time spent running the model. */
+  public final long runNanos;
+
+  /** Time spent reading the output tensors, or 0 when they're handed out as a {@link BtTensorView}. */
+  public final long copyNanos;
+
+  public BtBatchStats(int sequences, int sequenceLength, long realTokens, long tensorBytes,
+                      long inputsNanos, long runNanos, long copyNanos) {
+    this.sequences = sequences;
+    this.sequenceLength = sequenceLength;
+    this.realTokens = realTokens;
+    this.paddedTokens = (long) sequences * sequenceLength;
+    this.tensorBytes = tensorBytes;
+    this.inputsNanos = inputsNanos;
+    this.runNanos = runNanos;
+    this.copyNanos = copyNanos;
+  }
+
+  @Override public String toString() {
+    return String.format(
+        "[sequences: %d, length: %d, tokens: %d/%d, tensorBytes: %d, inputs: %dns, run: %dns, copy: %dns]",
+        sequences, sequenceLength, realTokens, paddedTokens, tensorBytes, inputsNanos, runNanos, copyNanos
+    );
+  }
+
+}
@@ -0,0 +1,168 @@
+package io.vacco.bertastic;
+
+import java.util.ArrayList;
+import java.util.concurrent.*;
+import java.util.function.Function;
+
+/**
+ * Gathers single-sequence embedding requests from many threads into batches for a {@link BtSession}.
+ * <p>
+ * Sequences are tokenized on the calling thread, then queued. A dispatcher thread sends a batch to the model as soon as it
+ * reaches {@link BtBatcherOptions#maxBatchSize} sequences or {@link BtBatcherOptions#maxBatchTokens} tokens, or when its oldest
+ * request has waited {@link BtBatcherOptions#maxWaitMicros}, and completes each caller's future with its row. When the queue is
+ * full, requests are rejected right away with a {@link RejectedExecutionException}.
+ */
+public class BtBatcher implements AutoCloseable {
+
+  private static class Request {
+    final int[] ids;
+    final long enqueuedAt = System.nanoTime();
+    final CompletableFuture<float[]> result = new CompletableFuture<>();
+
+    Request(int[] ids) {
+      this.ids = ids;
+    }
+  }
+
+  private final Function<String, int[]> encoder;
+  private final Function<int[][], float[][]> model;
+  private final BtBatcherOptions options;
+  private final BlockingQueue<Request> queue;
+  private final Thread dispatcher;
+
+  private volatile boolean closed;
+  private Request carry;
+
+  public BtBatcher(BtSession session, BtBatcherOptions options) {
+    this(session::encode, session::embedSequences, options);
+  }
+
+  /**
+   * Batches requests for any embedding function, such as one that runs batches on a {@link BtSessionPool}.
+   *
+   * @param encoder converts a sequence into inputIds, on the calling thread
+   * @param model converts a batch of inputIds into one pooled embedding per sequence, on the dispatcher thread
+   * @param options batching limits
+   */
+  public BtBatcher(Function<String, int[]> encoder, Function<int[][], float[][]> model, BtBatcherOptions options) {
+    this.encoder = encoder;
+    this.model = model;
+    this.options = options;
+    this.queue = new ArrayBlockingQueue<>(options.queueCapacity);
+    this.dispatcher = new Thread(this::dispatch, "bertastic-batcher");
+    this.dispatcher.setDaemon(true);
+    this.dispatcher.start();
+  }
+
+  /**
+   * Queues a sequence for embedding.
+   *
+   * @param sequence the sequence to embed
+   * @return a future completed with the pooled embedding for the sequence, or failed if the request was rejected or the model failed
+   */
+  public CompletableFuture<float[]> embedSequence(String sequence) {
+    if (closed) {
+      return CompletableFuture.failedFuture(new RejectedExecutionException("Batcher is closed"));
+    }
+    var request = new Request(encoder.apply(sequence));
+    if (!queue.offer(request)) {
+      return CompletableFuture.failedFuture(new RejectedExecutionException("Embedding queue is full"));
+    }
+    if (closed && !dispatcher.isAlive() && queue.remove(request)) {
+      request.result.completeExceptionally(new RejectedExecutionException("Batcher is closed"));
+    }
+    return request.result;
+  }
+
+  /**
+   * @return the number of requests waiting to be batched
+   */
+  public int queueDepth() {
+    return queue.size();
+  }
+
+  private Request next(long deadline) throws InterruptedException {
+    if (carry != null) {
+      var r = carry;
+      carry = null;
+      return r;
+    }
+    return queue.poll(Math.max(0, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+  }
+
+  private void dispatch() {
+    var batch = new ArrayList<Request>(options.maxBatchSize);
+    while (!closed || carry != null || !queue.isEmpty()) {
+      try {
+        var first = next(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(100));
+        if (first == null) {
+          continue;
+        }
+        batch.add(first);
+        int tokens = first.ids.length + 2;
+        long deadline = first.enqueuedAt + TimeUnit.MICROSECONDS.toNanos(options.maxWaitMicros);
+        while (batch.size() < options.maxBatchSize) {
+          var r = next(deadline);
+          if (r == null) {
+            break;
+          }
+          if (tokens + r.ids.length + 2 > options.maxBatchTokens) {
+            carry = r;
+            break;
+          }
+          batch.add(r);
+          tokens += r.ids.length + 2;
+        }
+        run(batch);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        break;
+      } finally {
+        batch.clear();
+      }
+    }
+    drain();
+  }
+
+  private void drain() {
+    var failure = new CancellationException("Batcher is closed");
+    if (carry != null) {
+      carry.result.completeExceptionally(failure);
+      carry = null;
+    }
+    for (Request r; (r = queue.poll()) != null; ) {
+      r.result.completeExceptionally(failure);
+    }
+  }
+
+  private void run(ArrayList<Request> batch) {
+    var ids = new int[batch.size()][];
+    for (int i = 0; i < ids.length; i++) {
+      ids[i] = batch.get(i).ids;
+    }
+    try {
+      var rows = model.apply(ids);
+      for (int i = 0; i < rows.length; i++) {
+        batch.get(i).result.complete(rows[i]);
+      }
+    } catch (Exception e) {
+      batch.forEach(r -> r.result.completeExceptionally(e));
+    }
+  }
+
+  /**
+   * Stops accepting requests, waits for the queued ones to be embedded, then stops the dispatcher thread.
+   */
+  @Override
+  public void close() {
+    closed = true;
+    try {
+      dispatcher.join();
+      drain(); // A caller may have passed the closed check and queued a request after the dispatcher's own drain
+    } catch (InterruptedException e) {
+      dispatcher.interrupt();
+      Thread.currentThread().interrupt();
+    }
+  }
+
+}
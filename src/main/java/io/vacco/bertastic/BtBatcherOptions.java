@@ -0,0 +1,17 @@
+package io.vacco.bertastic;
+
+public class BtBatcherOptions {
+
+  /** Maximum number of sequences sent to the model in one batch. */
+  public int maxBatchSize = 32;
+
+  /** Maximum number of tokens (including start and separator tokens) sent to the model in one batch. */
+  public int maxBatchTokens = 4096;
+
+  /** Maximum time the oldest request in a batch waits for more requests to arrive, in microseconds. */
+  public long maxWaitMicros = 2000;
+
+  /** Maximum number of requests waiting to be batched. Requests beyond this are rejected. */
+  public int queueCapacity = 1024;
+
+}
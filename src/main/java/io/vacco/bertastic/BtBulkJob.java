@@ -0,0 +1,198 @@
+package io.vacco.bertastic;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+
+/**
+ * Embeds every line of a text file with a {@link BtSession}, writing the pooled embeddings to a binary file.
+ * <p>
+ * The input is read through memory-mapped windows and cut into batches by token budget. The output starts with a
+ * {@value #HEADER_BYTES}-byte little-endian header (magic {@code BTE1}, format version, embedding dimensions and a reserved int),
+ * followed by one row of little-endian float32 values per input line, in input order, so row {@code i} starts at byte
+ * {@code HEADER_BYTES + i * dimensions * 4}.
+ * <p>
+ * Progress is checkpointed to a {@code .ckpt} file next to the output every few batches, along with a SHA-256 hash of the input
+ * read so far. Running a job again with the same input and output resumes from the last checkpoint, dropping any rows written
+ * after it. If the input read up to the checkpoint has changed since, the job fails instead of resuming.
+ */
+public class BtBulkJob {
+
+  public static final int HEADER_BYTES = 16;
+
+  private static final int MAGIC = 0x31455442; // "BTE1", little-endian
+  private static final int CHECKPOINT_MAGIC = 0x32435442; // "BTC2", little-endian
+  private static final int VERSION = 1;
+  private static final int HASH_BYTES = 32;
+  private static final int CHECKPOINT_BYTES = 32 + HASH_BYTES;
+  private static final String CHECKPOINT_SUFFIX = ".ckpt";
+
+  private final BtSession session;
+  private final BtBulkOptions options;
+
+  private FileChannel in, out;
+  private MessageDigest inputHash;
+  private File checkpoint;
+  private long inputSize, hashedInput, rows;
+  private int dimensions, batchesSinceCheckpoint;
+  private ByteBuffer rowBuffer = ByteBuffer.allocateDirect(0).order(ByteOrder.LITTLE_ENDIAN);
+
+  public BtBulkJob(BtSession session, BtBulkOptions options) {
+    this.session = session;
+    this.options = options;
+  }
+
+  /**
+   * Embeds the lines of a file, resuming from a previous run's checkpoint if there is one.
+   *
+   * @param input a UTF-8 text file with one sequence per line
+   * @param output the binary file to write embeddings to
+   * @return the total number of rows in the output
+   * @throws IOException if a file can't be read or written
+   * @throws IllegalStateException if the input changed since the checkpoint was written
+   */
+  public synchronized long run(File input, File output) throws IOException {
+    checkpoint = new File(output.getPath() + CHECKPOINT_SUFFIX);
+    long inputOffset = 0;
+    rows = 0;
+    dimensions = 0;
+    batchesSinceCheckpoint = 0;
+    hashedInput = 0;
+    inputHash = sha256();
+    try (var inChannel = FileChannel.open(input.toPath(), StandardOpenOption.READ)) {
+      in = inChannel;
+      inputSize = in.size();
+      if (checkpoint.isFile() && output.isFile()) {
+        var state = ByteBuffer.wrap(Files.readAllBytes(checkpoint.toPath())).order(ByteOrder.LITTLE_ENDIAN);
+        if (state.limit() != CHECKPOINT_BYTES || state.getInt() != CHECKPOINT_MAGIC) {
+          throw new IOException("Not a bulk job checkpoint: " + checkpoint);
+        }
+        long checkpointSize = state.getLong();
+        inputOffset = state.getLong();
+        rows = state.getLong();
+        dimensions = state.getInt();
+        var hash = new byte[HASH_BYTES];
+        state.get(hash);
+        if (checkpointSize != inputSize || !MessageDigest.isEqual(hash, hashInput(inputOffset))) {
+          throw new IllegalStateException("Input has changed since the last checkpoint: " + input);
+        }
+      }
+      return run(input, output, inputOffset);
+    } finally {
+      in = null;
+    }
+  }
+
+  private long run(File input, File output, long inputOffset) throws IOException {
+    try (var reader = new BtLineReader(input, inputOffset);
+         var channel = FileChannel.open(output.toPath(),
+             StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      out = channel;
+      out.truncate(dimensions == 0 ? 0 : HEADER_BYTES + rows * dimensions * Float.BYTES);
+      var batch = new ArrayList<int[]>();
+      int longest = 0;
+      while (reader.hasNext()) {
+        long lineStart = reader.offset();
+        var ids = session.encode(options.lineText.apply(reader.next()));
+        int length = Math.max(longest, session.paddedTokens(ids));
+        if (!batch.isEmpty() && (long) length * (batch.size() + 1) > options.maxBatchTokens) {
+          write(batch, lineStart);
+          batch.clear();
+          length = session.paddedTokens(ids);
+        }
+        batch.add(ids);
+        longest = length;
+      }
+      if (!batch.isEmpty()) {
+        write(batch, reader.offset());
+      }
+      checkpoint(reader.offset());
+      return rows;
+    } finally {
+      out = null;
+    }
+  }
+
+  private void write(ArrayList<int[]> batch, long inputOffset) throws IOException {
+    var vectors = session.embedSequences(batch.toArray(new int[0][]));
+    if (dimensions == 0) {
+      dimensions = vectors[0].length;
+      var header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+      header.putInt(MAGIC).putInt(VERSION).putInt(dimensions).putInt(0).flip();
+      writeFully(header, 0);
+    }
+    int bytes = vectors.length * dimensions * Float.BYTES;
+    if (rowBuffer.capacity() < bytes) {
+      rowBuffer = ByteBuffer.allocateDirect(bytes).order(ByteOrder.LITTLE_ENDIAN);
+    }
+    rowBuffer.clear();
+    var floats = rowBuffer.asFloatBuffer();
+    for (var vector : vectors) {
+      floats.put(vector);
+    }
+    rowBuffer.limit(bytes);
+    writeFully(rowBuffer, HEADER_BYTES + rows * dimensions * Float.BYTES);
+    rows += vectors.length;
+    if (++batchesSinceCheckpoint >= options.checkpointBatches) {
+      checkpoint(inputOffset);
+    }
+  }
+
+  private void writeFully(ByteBuffer src, long position) throws IOException {
+    while (src.hasRemaining()) {
+      position += out.write(src, position);
+    }
+  }
+
+  private static MessageDigest sha256() {
+    try {
+      return MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-256 is not available", e);
+    }
+  }
+
+  /**
+   * Extends the running hash of the input up to an offset, reading only the bytes not hashed yet.
+   *
+   * @return the hash of the input up to {@code inputOffset}
+   */
+  private byte[] hashInput(long inputOffset) throws IOException {
+    var buffer = ByteBuffer.allocate((int) Math.min(BtFileIO.BUFFER_SIZE, Math.max(1, inputOffset - hashedInput)));
+    while (hashedInput < inputOffset) {
+      buffer.clear().limit((int) Math.min(buffer.capacity(), inputOffset - hashedInput));
+      int read = in.read(buffer, hashedInput);
+      if (read < 0) {
+        throw new IllegalStateException("Input is shorter than the last checkpoint: " + inputOffset + " bytes");
+      }
+      inputHash.update(buffer.flip());
+      hashedInput += read;
+    }
+    try {
+      return ((MessageDigest) inputHash.clone()).digest();
+    } catch (CloneNotSupportedException e) {
+      throw new IllegalStateException("SHA-256 state can't be copied", e);
+    }
+  }
+
+  /** Flushes the output, then atomically records how far into the input its rows go, and a hash of that input. */
+  private void checkpoint(long inputOffset) throws IOException {
+    out.force(false);
+    var state = ByteBuffer.allocate(CHECKPOINT_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+    state.putInt(CHECKPOINT_MAGIC).putLong(inputSize).putLong(inputOffset).putLong(rows).putInt(dimensions);
+    state.put(hashInput(inputOffset));
+    var tmp = new File(checkpoint.getPath() + ".tmp").toPath();
+    Files.write(tmp, state.array());
+    Files.move(tmp, checkpoint.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    batchesSinceCheckpoint = 0;
+  }
+
+}
@@ -0,0 +1,19 @@
+package io.vacco.bertastic;
+
+import java.util.function.Function;
+
+public class BtBulkOptions {
+
+  /** Maximum number of tokens in a batch, padding included. A sequence longer than this runs alone. */
+  public int maxBatchTokens = 16384;
+
+  /** Number of batches written between checkpoints. Each checkpoint flushes the output file to disk. */
+  public int checkpointBatches = 8;
+
+  /**
+   * Extracts the sequence to embed from an input line. The default embeds the whole line. For JSONL input, this can parse the
+   * line and return one of its fields.
+   */
+  public Function<String, String> lineText = line -> line;
+
+}
@@ -0,0 +1,333 @@
+package io.vacco.bertastic;
+
+import java.util.*;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Function;
+
+/**
+ * A size-bounded, concurrent cache of pooled embeddings.
+ * <p>
+ * Entries are spread over independently locked segments. The memory budget counts the bytes of stored floats, and is split
+ * evenly among segments. With {@link Policy#LRU} each segment evicts its least recently used entries. With {@link Policy#TINY_LFU}
+ * new entries go to a small LRU window first, and only move to the main area if they've been requested more often than the entry
+ * they would evict, which keeps one-off inputs from flushing popular ones (W-TinyLFU).
+ * <p>
+ * Rows are copied on the way in and out, so callers can modify the arrays they get back.
+ */
+public class BtCache {
+
+  /** What identifies an input sequence in the cache. */
+  public enum Key {
+    /**
+     * The input text, with whitespace runs collapsed and trimmed, and ASCII letters lower-cased for models that lower-case. Cache
+     * hits skip tokenization. Texts that only differ in the case of other letters, or in accents, are cached separately.
+     */
+    TEXT,
+    /** The encoded inputIds of the sequence, which also matches texts that only differ in ways the tokenizer normalizes away. */
+    TOKEN_IDS
+  }
+
+  /** How entries are evicted once the memory budget is reached. */
+  public enum Policy { LRU, TINY_LFU }
+
+  private static final int SEGMENTS = 16;
+  private static final int WINDOW_PERCENT = 1;
+
+  private static final class IdsKey {
+    final int[] ids;
+    final int hash;
+
+    IdsKey(int[] ids) {
+      this.ids = ids;
+      this.hash = Arrays.hashCode(ids);
+    }
+
+    @Override public int hashCode() {
+      return hash;
+    }
+
+    @Override public boolean equals(Object o) {
+      return o instanceof IdsKey && ((IdsKey) o).hash == hash && Arrays.equals(((IdsKey) o).ids, ids);
+    }
+  }
+
+  /** A count-min sketch of 4 rows of saturating byte counters, halved periodically so that old popularity fades. */
+  private static final class Frequency {
+    final byte[] counters;
+    final int mask, sampleSize;
+    int samples;
+
+    Frequency(int width) {
+      int w = Integer.highestOneBit(Math.max(64, width - 1) << 1);
+      counters = new byte[w * 4];
+      mask = w - 1;
+      sampleSize = w * 10;
+    }
+
+    private int index(int hash, int row) {
+      int h = (hash + row * 0x9E3779B9) * 0x85EBCA6B;
+      return row * (mask + 1) + ((h ^ (h >>> 16)) & mask);
+    }
+
+    void increment(int hash) {
+      for (int row = 0; row < 4; row++) {
+        int i = index(hash, row);
+        if (counters[i] < 15) {
+          counters[i]++;
+        }
+      }
+      if (++samples >= sampleSize) {
+        for (int i = 0; i < counters.length; i++) {
+          counters[i] >>= 1;
+        }
+        samples /= 2;
+      }
+    }
+
+    int frequency(int hash) {
+      int min = 15;
+      for (int row = 0; row < 4; row++) {
+        min = Math.min(min, counters[index(hash, row)]);
+      }
+      return min;
+    }
+  }
+
+  private final class Segment {
+    final LinkedHashMap<Object, float[]> window = new LinkedHashMap<>(16, 0.75f, true);
+    final LinkedHashMap<Object, float[]> main = new LinkedHashMap<>(16, 0.75f, true);
+    final long windowMax, mainMax;
+    final Frequency frequency;
+    long windowBytes, mainBytes;
+
+    Segment(long maxBytes) {
+      if (policy == Policy.TINY_LFU) {
+        windowMax = Math.max(1, maxBytes * WINDOW_PERCENT / 100);
+        frequency = new Frequency((int) Math.min(1 << 20, maxBytes / 1024));
+      } else {
+        windowMax = 0;
+        frequency = null;
+      }
+      mainMax = maxBytes - windowMax;
+    }
+
+    synchronized float[] get(Object key) {
+      if (frequency != null) {
+        frequency.increment(key.hashCode());
+      }
+      var row = main.get(key);
+      return row != null ? row : window.get(key);
+    }
+
+    synchronized void put(Object key, float[] row) {
+      long bytes = bytesOf(row);
+      if (main.containsKey(key) || window.containsKey(key)) {
+        return;
+      }
+      if (frequency == null) {
+        main.put(key, row);
+        mainBytes += bytes;
+        while (mainBytes > mainMax && !main.isEmpty()) {
+          mainBytes -= evictEldest(main);
+        }
+        return;
+      }
+      window.put(key, row);
+      windowBytes += bytes;
+      while (windowBytes > windowMax && !window.isEmpty()) {
+        var candidate = window.entrySet().iterator().next();
+        window.remove(candidate.getKey());
+        windowBytes -= bytesOf(candidate.getValue());
+        admit(candidate.getKey(), candidate.getValue());
+      }
+    }
+
+    private void admit(Object key, float[] row) {
+      long bytes = bytesOf(row);
+      int candidateFrequency = frequency.frequency(key.hashCode());
+      while (mainBytes + bytes > mainMax && !main.isEmpty()) {
+        var victim = main.keySet().iterator().next();
+        if (candidateFrequency <= frequency.frequency(victim.hashCode())) {
+          evictions.increment();
+          return;
+        }
+        mainBytes -= evictEldest(main);
+      }
+      if (bytes > mainMax) {
+        evictions.increment();
+        return;
+      }
+      main.put(key, row);
+      mainBytes += bytes;
+    }
+
+    private long evictEldest(LinkedHashMap<Object, float[]> area) {
+      var it = area.values().iterator();
+      long bytes = bytesOf(it.next());
+      it.remove();
+      evictions.increment();
+      return bytes;
+    }
+
+    synchronized int size() {
+      return main.size() + window.size();
+    }
+
+    synchronized long bytes() {
+      return mainBytes + windowBytes;
+    }
+  }
+
+  public final Key key;
+  public final Policy policy;
+  public final long maxBytes;
+
+  private final Segment[] segments;
+  private final LongAdder hits = new LongAdder(), misses = new LongAdder(), evictions = new LongAdder();
+
+  /**
+   * @param key what identifies an input sequence in the cache
+   * @param policy how entries are evicted
+   * @param maxBytes the memory budget, counted as bytes of stored floats
+   */
+  public BtCache(Key key, Policy policy, long maxBytes) {
+    this(key, policy, maxBytes, SEGMENTS);
+  }
+
+  /**
+   * @param key what identifies an input sequence in the cache
+   * @param policy how entries are evicted
+   * @param maxBytes the memory budget, counted as bytes of stored floats
+   * @param segments number of independently locked segments, a power of two. Each evicts on its own, within its share of the
+   *                 budget, so a single segment gives exact LRU or W-TinyLFU order at the cost of contention.
+   */
+  public BtCache(Key key, Policy policy, long maxBytes, int segments) {
+    if (segments < 1 || Integer.bitCount(segments) != 1) {
+      throw new IllegalArgumentException("Cache segments must be a power of two: " + segments);
+    }
+    this.key = Objects.requireNonNull(key);
+    this.policy = Objects.requireNonNull(policy);
+    this.maxBytes = maxBytes;
+    this.segments = new Segment[segments];
+    for (int i = 0; i < segments; i++) {
+      this.segments[i] = new Segment(maxBytes / segments);
+    }
+  }
+
+  private static long bytesOf(float[] row) {
+    return (long) row.length * Float.BYTES;
+  }
+
+  private Segment segmentFor(Object key) {
+    int h = key.hashCode();
+    return segments[(h ^ (h >>> 16)) & (segments.length - 1)];
+  }
+
+  /**
+   * @param sequence an input sequence
+   * @param lowerCase whether the model lower-cases its input, see {@link BtModelDetails#doLowerCase}
+   * @return the {@link Key#TEXT} key of the sequence
+   */
+  public static Object textKey(String sequence, boolean lowerCase) {
+    boolean fold = lowerCase && BtBasic.hasAsciiLowerCase(Locale.getDefault());
+    var sb = new StringBuilder(sequence.length());
+    boolean space = false;
+    for (int i = 0; i < sequence.length(); i++) {
+      char c = sequence.charAt(i);
+      if (c == ' ' || c == '\t' || c == '\n' || c == '\r') {
+        space = sb.length() > 0;
+      } else {
+        if (space) {
+          sb.append(' ');
+          space = false;
+        }
+        sb.append(fold && c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c);
+      }
+    }
+    return sb.toString();
+  }
+
+  /**
+   * @param ids the inputIds of a sequence, which the key keeps without copying
+   * @return the {@link Key#TOKEN_IDS} key of the sequence
+   */
+  public static Object idsKey(int[] ids) {
+    return new IdsKey(ids);
+  }
+
+  /**
+   * Looks up a batch of rows, computing all misses at once.
+   *
+   * @param keys cache keys, from {@link #textKey(String, boolean)} or {@link #idsKey(int[])}
+   * @param load computes the rows for the indexes (in {@code keys}) of the entries that weren't cached, in the same order
+   * @return one row per key
+   */
+  public float[][] getAll(Object[] keys, Function<int[], float[][]> load) {
+    var out = new float[keys.length][];
+    var missed = new int[keys.length];
+    int missCount = 0;
+    for (int i = 0; i < keys.length; i++) {
+      var row = segmentFor(keys[i]).get(keys[i]);
+      if (row != null) {
+        out[i] = row.clone();
+      } else {
+        missed[missCount++] = i;
+      }
+    }
+    hits.add(keys.length - missCount);
+    misses.add(missCount);
+    if (missCount > 0) {
+      var indexes = Arrays.copyOf(missed, missCount);
+      var rows = load.apply(indexes);
+      for (int i = 0; i < indexes.length; i++) {
+        var k = keys[indexes[i]];
+        segmentFor(k).put(k, rows[i].clone());
+        out[indexes[i]] = rows[i];
+      }
+    }
+    return out;
+  }
+
+  public long hits() {
+    return hits.sum();
+  }
+
+  public long misses() {
+    return misses.sum();
+  }
+
+  public long evictions() {
+    return evictions.sum();
+  }
+
+  /**
+   * @return the fraction of lookups that were hits, or 0 if there were no lookups
+   */
+  public double hitRate() {
+    long h = hits(), total = h + misses();
+    return total == 0 ? 0 : (double) h / total;
+  }
+
+  /**
+   * @return the number of cached rows
+   */
+  public int size() {
+    int size = 0;
+    for (var s : segments) {
+      size += s.size();
+    }
+    return size;
+  }
+
+  /**
+   * @return the bytes of floats currently stored
+   */
+  public long bytes() {
+    long bytes = 0;
+    for (var s : segments) {
+      bytes += s.bytes();
+    }
+    return bytes;
+  }
+
+}
@@ -0,0 +1,211 @@
+package io.vacco.bertastic;
+
+import java.util.Arrays;
+import java.util.function.Function;
+
+/**
+ * The inputIds of a batch of sequences, stored back to back in a single array (compressed sparse row layout).
+ * <p>
+ * Sequence {@code i} holds the inputIds {@code ids[offsets[i], offsets[i + 1])}, so a batch takes two arrays however many
+ * sequences and sub-tokens it has. Sub-token strings are only created when asked for, with {@link #tokens(int)}.
+ */
+public class BtEncoding {
+
+  /** The inputIds of all sequences, back to back. */
+  public final int[] ids;
+
+  /** Where each sequence starts in {@link #ids}, followed by the total number of inputIds. */
+  public final int[] offsets;
+
+  private final BtFull tokenizer;
+
+  /**
+   * @param ids the inputIds of all sequences, back to back
+   * @param offsets where each sequence starts in {@code ids}, followed by the total number of inputIds
+   * @param tokenizer the tokenizer that encoded the sequences, used to decode sub-token strings. May be {@code null}.
+   */
+  public BtEncoding(int[] ids, int[] offsets, BtFull tokenizer) {
+    if (offsets.length == 0 || offsets[0] != 0 || offsets[offsets.length - 1] > ids.length) {
+      throw new IllegalArgumentException("Offsets don't match the inputIds");
+    }
+    this.ids = ids;
+    this.offsets = offsets;
+    this.tokenizer = tokenizer;
+  }
+
+  /**
+   * Packs separately encoded sequences into a single encoding.
+   *
+   * @param sequences the inputIds of each sequence
+   * @return an encoding that holds copies of the inputIds
+   */
+  public static BtEncoding of(int[][] sequences) {
+    var offsets = new int[sequences.length + 1];
+    for (int i = 0; i < sequences.length; i++) {
+      offsets[i + 1] = offsets[i] + sequences[i].length;
+    }
+    var ids = new int[offsets[sequences.length]];
+    for (int i = 0; i < sequences.length; i++) {
+      System.arraycopy(sequences[i], 0, ids, offsets[i], sequences[i].length);
+    }
+    return new BtEncoding(ids, offsets, null);
+  }
+
+  /**
+   * @return the number of sequences
+   */
+  public int size() {
+    return offsets.length - 1;
+  }
+
+  /**
+   * @return the index in {@link #ids} of the first inputId of a sequence
+   */
+  public int offset(int sequence) {
+    return offsets[sequence];
+  }
+
+  /**
+   * @return the number of inputIds in a sequence
+   */
+  public int length(int sequence) {
+    return offsets[sequence + 1] - offsets[sequence];
+  }
+
+  /**
+   * @return the total number of inputIds
+   */
+  public int totalLength() {
+    return offsets[offsets.length - 1];
+  }
+
+  /**
+   * @return a copy of the inputIds of a sequence
+   */
+  public int[] ids(int sequence) {
+    return Arrays.copyOfRange(ids, offsets[sequence], offsets[sequence + 1]);
+  }
+
+  /**
+   * Decodes the sub-tokens of a sequence.
+   *
+   * @return the sub-tokens of a sequence, including the {@code ##} prefix of continuation sub-tokens
+   * @throws IllegalStateException if the encoding wasn't made by a {@link BtFull}
+   */
+  public String[] tokens(int sequence) {
+    if (tokenizer == null) {
+      throw new IllegalStateException("Encoding has no vocabulary to decode sub-tokens with");
+    }
+    var out = new String[length(sequence)];
+    for (int i = 0; i < out.length; i++) {
+      out[i] = tokenizer.token(ids[offsets[sequence] + i]);
+    }
+    return out;
+  }
+
+  /**
+   * Finds sequences with the same inputIds as an earlier one.
+   *
+   * @return for each sequence, the index of the first sequence with the same inputIds, or {@code null} if all are distinct
+   */
+  public int[] firstOccurrences() {
+    int n = size();
+    int mask = Integer.highestOneBit(Math.max(2, n) * 2 - 1) * 2 - 1;
+    var table = new int[mask + 1];
+    Arrays.fill(table, -1);
+    int[] firstOf = null;
+    for (int i = 0; i < n; i++) {
+      int h = 1;
+      for (int k = offsets[i]; k < offsets[i + 1]; k++) {
+        h = 31 * h + ids[k];
+      }
+      h *= 0x9E3779B9;
+      for (int slot = (h ^ h >>> 16) & mask; ; slot = (slot + 1) & mask) {
+        int j = table[slot];
+        if (j == -1) {
+          table[slot] = i;
+          break;
+        }
+        if (Arrays.equals(ids, offsets[i], offsets[i + 1], ids, offsets[j], offsets[j + 1])) {
+          if (firstOf == null) {
+            firstOf = new int[n];
+            for (int k = 0; k < n; k++) {
+              firstOf[k] = k;
+            }
+          }
+          firstOf[i] = j;
+          break;
+        }
+      }
+    }
+    return firstOf;
+  }
+
+  /**
+   * Embeds only the first of each group of equal inputs, and gives the others copies of its embedding.
+   *
+   * @param firstOf for each input, the index of the first one equal to it, as returned by {@link #firstOccurrences()}
+   * @param embed embeds the inputs at the given indexes, in the given order
+   * @return the embeddings for all inputs, in their original order
+   */
+  public static float[][] embedDistinct(int[] firstOf, Function<int[], float[][]> embed) {
+    var slots = new int[firstOf.length];
+    int distinct = 0;
+    for (int i = 0; i < firstOf.length; i++) {
+      slots[i] = firstOf[i] == i ? distinct++ : slots[firstOf[i]];
+    }
+    var indexes = new int[distinct];
+    for (int i = 0; i < firstOf.length; i++) {
+      if (firstOf[i] == i) {
+        indexes[slots[i]] = i;
+      }
+    }
+    var rows = embed.apply(indexes);
+    var out = new float[firstOf.length][];
+    for (int i = 0; i < firstOf.length; i++) {
+      out[i] = firstOf[i] == i ? rows[slots[i]] : rows[slots[i]].clone();
+    }
+    return out;
+  }
+
+  /**
+   * @param sequences indexes of the sequences to keep
+   * @return a copy of the encoding with only the given sequences, in the given order
+   */
+  public BtEncoding subset(int[] sequences) {
+    var subsetOffsets = new int[sequences.length + 1];
+    for (int i = 0; i < sequences.length; i++) {
+      subsetOffsets[i + 1] = subsetOffsets[i] + length(sequences[i]);
+    }
+    var subsetIds = new int[subsetOffsets[sequences.length]];
+    for (int i = 0; i < sequences.length; i++) {
+      System.arraycopy(ids, offsets[sequences[i]], subsetIds, subsetOffsets[i], length(sequences[i]));
+    }
+    return new BtEncoding(subsetIds, subsetOffsets, tokenizer);
+  }
+
+  /**
+   * Cuts sequences down to a maximum number of inputIds.
+   *
+   * @param maxLength the maximum number of inputIds in a sequence
+   * @return this encoding if no sequence is longer than {@code maxLength}, otherwise a truncated copy
+   */
+  public BtEncoding truncate(int maxLength) {
+    int total = 0;
+    for (int i = 0; i < size(); i++) {
+      total += Math.min(length(i), maxLength);
+    }
+    if (total == totalLength()) {
+      return this;
+    }
+    var truncated = new int[total];
+    var truncatedOffsets = new int[offsets.length];
+    for (int i = 0; i < size(); i++) {
+      int length = Math.min(length(i), maxLength);
+      System.arraycopy(ids, offsets[i], truncated, truncatedOffsets[i], length);
+      truncatedOffsets[i + 1] = truncatedOffsets[i] + length;
+    }
+    return new BtEncoding(truncated, truncatedOffsets, tokenizer);
+  }
+
+}
@@ -7,14 +7,15 @@ import java.util.zip.*;
 
 public class BtFileIO {
 
+  static final int BUFFER_SIZE = 1 << 20;
+
   public static void unzip(URL zipUrl, File outDir) throws IOException {
     try (var inputStream = zipUrl.openStream();
          var zipInputStream = new ZipInputStream(inputStream)) {
-      var buffer = new byte[1024];
+      var buffer = new byte[BUFFER_SIZE];
       ZipEntry entry;
       while ((entry = zipInputStream.getNextEntry()) != null) {
-        var fileName = entry.getName();
-        var outputFile = new File(outDir, fileName);
+        var outputFile = entryFile(outDir, entry);
         if (entry.isDirectory()) {
           Files.createDirectories(outputFile.toPath());
         } else {
@@ -31,6 +32,26 @@ public class BtFileIO {
     }
   }
 
+  /** Resolves where a zip entry goes, refusing entries whose names would place them outside the output directory. */
+  static File entryFile(File outDir, ZipEntry entry) throws IOException {
+    var root = outDir.toPath().toAbsolutePath().normalize();
+    var path = root.resolve(entry.getName()).normalize();
+    if (!path.startsWith(root)) {
+      throw new IOException("Zip entry outside of target directory: " + entry.getName());
+    }
+    return path.toFile();
+  }
+
+  static void copy(InputStream in, File out, long sizeHint) throws IOException {
+    var buffer = new byte[(int) Math.max(8192, Math.min(BUFFER_SIZE, sizeHint))];
+    try (var outputStream = new FileOutputStream(out)) {
+      int length;
+      while ((length = in.read(buffer)) > 0) {
+        outputStream.write(buffer, 0, length);
+      }
+    }
+  }
+
   public static File newTempDir() {
     try {
       var tmp = Files.createTempDirectory("bertastic-").toFile();
@@ -1,6 +1,7 @@
 package io.vacco.bertastic;
 
 import java.io.*;
+import java.nio.IntBuffer;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.stream.Stream;
@@ -18,9 +19,17 @@ import java.util.stream.Stream;
  */
 public class BtFull extends BtTokenizer {
 
-  private final Map<String, Integer> vocabulary;
+  private final BtTrie vocabulary;
   private final BtBasic basic;
   private final BtWordPiece wordpiece;
+  private volatile String[] tokens;
+
+  private static class Scratch {
+    final BtTokenBuffer tokens = new BtTokenBuffer();
+    int[] ids = new int[512];
+  }
+
+  private static final ThreadLocal<Scratch> SCRATCH = ThreadLocal.withInitial(Scratch::new);
 
   private static Map<String, Integer> loadVocabulary(File in) {
     var vocabulary = new HashMap<String, Integer>();
@@ -43,9 +52,47 @@ public class BtFull extends BtTokenizer {
    * @param doLowerCase whether to convert sequences to lower case during tokenization
    */
   public BtFull(File vocabulary, boolean doLowerCase) {
-    this.vocabulary = loadVocabulary(vocabulary);
+    this(new BtTrie(loadVocabulary(vocabulary)), doLowerCase);
+  }
+
+  /**
+   * Creates a BERT {@link BtFull} over a compiled vocabulary, such as one loaded with {@link BtTrie#map(File)}
+   *
+   * @param vocabulary the compiled BERT vocabulary
+   * @param doLowerCase whether to convert sequences to lower case during tokenization
+   */
+  public BtFull(BtTrie vocabulary, boolean doLowerCase) {
+    this.vocabulary = vocabulary;
     basic = new BtBasic(doLowerCase);
-    wordpiece = new BtWordPiece(this.vocabulary);
+    wordpiece = new BtWordPiece(vocabulary, BtWordCache.shared(vocabulary));
+  }
+
+  /**
+   * Compiles a BERT vocabulary file into a snapshot that loads without parsing, see {@link BtTrie#map(File)}
+   *
+   * @param vocabulary BERT vocabulary file to compile
+   * @param snapshot the snapshot file to write
+   */
+  public static void compileVocabulary(File vocabulary, File snapshot) {
+    try {
+      new BtTrie(loadVocabulary(vocabulary)).write(snapshot);
+    } catch (IOException e) {
+      throw new RuntimeException("Unable to write vocabulary snapshot to " + snapshot.getAbsolutePath(), e);
+    }
+  }
+
+  /**
+   * @return the cache of split words this {@link BtFull} shares with other tokenizers over the same vocabulary
+   */
+  public BtWordCache getWordCache() {
+    return wordpiece.getCache();
+  }
+
+  /**
+   * @return the compiled vocabulary this {@link BtFull} converts sub-tokens with
+   */
+  public BtTrie getVocabulary() {
+    return vocabulary;
   }
 
   /**
@@ -55,7 +102,121 @@ public class BtFull extends BtTokenizer {
    * @return the inputIds for the tokens
    */
   public int[] convert(String[] tokens) {
-    return Arrays.stream(tokens).mapToInt(vocabulary::get).toArray();
+    var ids = new int[tokens.length];
+    for (int i = 0; i < tokens.length; i++) {
+      ids[i] = vocabulary.get(tokens[i]);
+      if (ids[i] == -1) {
+        throw new IllegalArgumentException("Token is not in the vocabulary: " + tokens[i]);
+      }
+    }
+    return ids;
+  }
+
+  private static int encode(BtBasic basic, BtWordPiece wordpiece, String sequence, Scratch scratch) {
+    var tokens = basic.tokenize(sequence, scratch.tokens);
+    int capacity = tokens.length() + tokens.size();
+    if (scratch.ids.length < capacity) {
+      scratch.ids = new int[Math.max(capacity, scratch.ids.length * 2)];
+    }
+    int count = 0;
+    for (int i = 0; i < tokens.size(); i++) {
+      count += wordpiece.splitToken(tokens.chars(), tokens.start(i), tokens.end(i), scratch.ids, count);
+    }
+    return count;
+  }
+
+  /**
+   * Converts a sequence directly into the inputIds of its BERT sub-tokens, without creating the sub-token strings
+   *
+   * @param sequence the sequence to encode
+   * @return the inputIds for the sequence
+   */
+  public int[] encode(String sequence) {
+    var scratch = SCRATCH.get();
+    int count = encode(basic, wordpiece, sequence, scratch); // May grow scratch.ids
+    return Arrays.copyOf(scratch.ids, count);
+  }
+
+  /**
+   * Converts a batch of sequences directly into the inputIds of their BERT sub-tokens, packed into two arrays, without creating
+   * per-sequence arrays or sub-token strings
+   *
+   * @param sequences the sequences to encode
+   * @return the inputIds for the sequences, in the order they were provided
+   */
+  public BtEncoding encodeBatch(String ... sequences) {
+    var scratch = SCRATCH.get();
+    var offsets = new int[sequences.length + 1];
+    var ids = new int[Math.max(16, sequences.length * 16)];
+    for (int i = 0; i < sequences.length; i++) {
+      int count = encode(basic, wordpiece, sequences[i], scratch);
+      if (ids.length - offsets[i] < count) {
+        ids = Arrays.copyOf(ids, Math.max(offsets[i] + count, ids.length * 2));
+      }
+      System.arraycopy(scratch.ids, 0, ids, offsets[i], count);
+      offsets[i + 1] = offsets[i] + count;
+    }
+    return new BtEncoding(ids, offsets, this);
+  }
+
+  /**
+   * Converts a sequence into the inputIds of its BERT sub-tokens, grouped by the {@link BtBasic} word each one came from.
+   *
+   * @param sequence the sequence to encode
+   * @param words receives the words, in order. Words that don't produce any sub-tokens are left out.
+   * @return an encoding with one entry per word, holding the inputIds of the word's sub-tokens
+   */
+  public BtEncoding encodeWords(String sequence, List<String> words) {
+    var scratch = SCRATCH.get();
+    var tokens = basic.tokenize(sequence, scratch.tokens);
+    int capacity = tokens.length() + tokens.size();
+    if (scratch.ids.length < capacity) {
+      scratch.ids = new int[Math.max(capacity, scratch.ids.length * 2)];
+    }
+    var offsets = new int[tokens.size() + 1];
+    int count = 0, word = 0;
+    for (int i = 0; i < tokens.size(); i++) {
+      int subTokens = wordpiece.splitToken(tokens.chars(), tokens.start(i), tokens.end(i), scratch.ids, count);
+      if (subTokens > 0) {
+        words.add(new String(tokens.chars(), tokens.start(i), tokens.end(i) - tokens.start(i)));
+        count += subTokens;
+        offsets[++word] = count;
+      }
+    }
+    return new BtEncoding(Arrays.copyOf(scratch.ids, count), Arrays.copyOf(offsets, word + 1), this);
+  }
+
+  /**
+   * Converts an inputId back into its sub-token. The first call lists the whole vocabulary, see {@link BtTrie#tokens()}.
+   *
+   * @param id the inputId
+   * @return the sub-token, including its {@code ##} prefix if it has one
+   * @throws IllegalArgumentException if no sub-token has the inputId
+   */
+  public String token(int id) {
+    var t = tokens;
+    if (t == null) {
+      tokens = t = vocabulary.tokens();
+    }
+    if (id < 0 || id >= t.length || t[id] == null) {
+      throw new IllegalArgumentException("No token has inputId " + id);
+    }
+    return t[id];
+  }
+
+  /**
+   * Converts a sequence directly into the inputIds of its BERT sub-tokens, writing them at the current position of a caller-supplied buffer.
+   * If the sequence has more sub-tokens than the buffer has room for, the remaining ones are dropped.
+   *
+   * @param sequence the sequence to encode
+   * @param out the buffer to write inputIds into
+   * @return the total number of sub-tokens in the sequence, which may be larger than the number of inputIds written
+   */
+  public int encode(String sequence, IntBuffer out) {
+    var scratch = SCRATCH.get();
+    int count = encode(basic, wordpiece, sequence, scratch);
+    out.put(scratch.ids, 0, Math.min(count, out.remaining()));
+    return count;
   }
 
   @Override
@@ -0,0 +1,87 @@
+package io.vacco.bertastic;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Keeps idle {@link BtInputs} around, keyed by batch shape, so that native input tensors are reused across calls instead of
+ * being allocated and freed every time. At most {@code maxIdle} input sets are kept; the rest are freed when released.
+ */
+public class BtInputPool implements AutoCloseable {
+
+  private static final ConcurrentLinkedDeque<BtInputs> EMPTY = new ConcurrentLinkedDeque<>();
+
+  private final ConcurrentHashMap<Long, ConcurrentLinkedDeque<BtInputs>> idle = new ConcurrentHashMap<>();
+  private final AtomicInteger idleCount = new AtomicInteger();
+  private final int maxIdle;
+  private volatile boolean closed;
+
+  /**
+   * @param maxIdle maximum number of idle input sets to keep. 0 disables reuse.
+   */
+  public BtInputPool(int maxIdle) {
+    this.maxIdle = maxIdle;
+  }
+
+  private static long shapeOf(int count, int sequenceLength) {
+    return ((long) count << 32) | sequenceLength;
+  }
+
+  /**
+   * Takes an idle input set of the given shape, or allocates one. Closing it returns it to the pool.
+   *
+   * @param count number of sequences
+   * @param sequenceLength padded length of each sequence
+   * @throws IllegalStateException if the pool was closed
+   */
+  public BtInputs acquire(int count, int sequenceLength) {
+    if (closed) {
+      throw new IllegalStateException("Input pool is closed");
+    }
+    var inputs = idle.getOrDefault(shapeOf(count, sequenceLength), EMPTY).pollFirst();
+    if (inputs != null) {
+      idleCount.decrementAndGet();
+      return inputs;
+    }
+    return new BtInputs(this, count, sequenceLength);
+  }
+
+  void release(BtInputs inputs) {
+    if (closed) {
+      inputs.free();
+      return;
+    }
+    if (idleCount.incrementAndGet() > maxIdle) {
+      idleCount.decrementAndGet();
+      inputs.free();
+      return;
+    }
+    idle.computeIfAbsent(shapeOf(inputs.count, inputs.sequenceLength), k -> new ConcurrentLinkedDeque<>()).addFirst(inputs);
+    if (closed) {
+      close();
+    }
+  }
+
+  /**
+   * @return the number of idle input sets kept for reuse
+   */
+  public int idle() {
+    return idleCount.get();
+  }
+
+  /**
+   * Frees all idle input sets. Input sets still in use are freed when they're released.
+   */
+  @Override
+  public void close() {
+    closed = true;
+    for (var deque : idle.values()) {
+      for (BtInputs inputs; (inputs = deque.pollFirst()) != null; ) {
+        idleCount.decrementAndGet();
+        inputs.free();
+      }
+    }
+  }
+
+}
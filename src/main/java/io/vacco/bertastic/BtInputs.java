@@ -9,18 +9,79 @@ public class BtInputs implements AutoCloseable {
 
   public final Tensor inputIds, inputMask, segmentIds;
 
+  final int count, sequenceLength;
+
+  private final IntDataBuffer ids, mask;
+  private final BtInputPool pool;
+
   public BtInputs(IntDataBuffer inputIds, IntDataBuffer inputMask, IntDataBuffer segmentIds,
                   int count, int maxSequenceLength) {
     this.inputIds = TInt32.tensorOf(Shape.of(count, maxSequenceLength), inputIds);
     this.inputMask = TInt32.tensorOf(Shape.of(count, maxSequenceLength), inputMask);
     this.segmentIds = TInt32.tensorOf(Shape.of(count, maxSequenceLength), segmentIds);
+    this.count = count;
+    this.sequenceLength = maxSequenceLength;
+    this.ids = null;
+    this.mask = null;
+    this.pool = null;
   }
 
-  @Override
-  public void close() {
+  /**
+   * Allocates empty input tensors whose rows are written in place with {@link #put(int, int, int[], int)}, and which go back to
+   * {@code pool} when closed.
+   */
+  BtInputs(BtInputPool pool, int count, int sequenceLength) {
+    var shape = Shape.of(count, sequenceLength);
+    var idsTensor = TInt32.tensorOf(shape);
+    var maskTensor = TInt32.tensorOf(shape);
+    var segmentTensor = TInt32.tensorOf(shape);
+    this.inputIds = idsTensor;
+    this.inputMask = maskTensor;
+    this.segmentIds = segmentTensor;
+    this.count = count;
+    this.sequenceLength = sequenceLength;
+    this.ids = idsTensor.asRawTensor().data().asInts();
+    this.mask = maskTensor.asRawTensor().data().asInts();
+    this.pool = pool;
+    var segments = segmentTensor.asRawTensor().data().asInts();
+    for (long i = 0; i < segments.size(); i++) {
+      segments.setInt(0, i); // segmentIds are always 0 for inference, so they're written only once
+    }
+  }
+
+  /**
+   * Writes one sequence into the native tensor memory, framed by its start and separator tokens and padded with zeros.
+   */
+  void put(int row, int startTokenId, int[] tokenIds, int offset, int count, int separatorTokenId) {
+    long base = (long) row * sequenceLength;
+    int length = count + 2;
+    ids.setInt(startTokenId, base);
+    if (count > 0) {
+      ids.slice(base + 1, count).write(tokenIds, offset, count);
+    }
+    ids.setInt(separatorTokenId, base + length - 1);
+    for (int i = 0; i < length; i++) {
+      mask.setInt(1, base + i);
+    }
+    for (int i = length; i < sequenceLength; i++) {
+      ids.setInt(0, base + i);
+      mask.setInt(0, base + i);
+    }
+  }
+
+  void free() {
     inputIds.close();
     inputMask.close();
     segmentIds.close();
   }
 
+  @Override
+  public void close() {
+    if (pool != null) {
+      pool.release(this);
+    } else {
+      free();
+    }
+  }
+
 }
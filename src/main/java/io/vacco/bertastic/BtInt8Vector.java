@@ -0,0 +1,49 @@
+package io.vacco.bertastic;
+
+/**
+ * A vector quantized to signed bytes with a single scale, so that element {@code i} is approximately
+ * {@code values[i] * scale}. The scale maps the element with the largest magnitude to ±127.
+ */
+public class BtInt8Vector {
+
+  public final byte[] values;
+  public final float scale;
+
+  public BtInt8Vector(byte[] values, float scale) {
+    this.values = values;
+    this.scale = scale;
+  }
+
+  /**
+   * Quantizes a vector.
+   *
+   * @param vector the vector to quantize
+   * @return the quantized vector
+   */
+  public static BtInt8Vector of(float[] vector) {
+    float max = 0;
+    for (float v : vector) {
+      max = Math.max(max, Math.abs(v));
+    }
+    float scale = max / 127;
+    var values = new byte[vector.length];
+    if (scale > 0) {
+      for (int i = 0; i < vector.length; i++) {
+        values[i] = (byte) Math.round(vector[i] / scale);
+      }
+    }
+    return new BtInt8Vector(values, scale);
+  }
+
+  /**
+   * @return the approximate float values of this vector
+   */
+  public float[] toFloats() {
+    var out = new float[values.length];
+    for (int i = 0; i < values.length; i++) {
+      out[i] = values[i] * scale;
+    }
+    return out;
+  }
+
+}
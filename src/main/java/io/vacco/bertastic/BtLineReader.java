@@ -0,0 +1,92 @@
+package io.vacco.bertastic;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * Reads UTF-8 lines from a file through a sliding memory-mapped window, keeping track of the byte offset of the next line so
+ * that reading can resume from it later.
+ */
+class BtLineReader implements Iterator<String>, AutoCloseable {
+
+  private static final int WINDOW_SIZE = 64 << 20;
+
+  private final FileChannel channel;
+  private final long size;
+  private MappedByteBuffer window;
+  private long windowStart, offset;
+  private byte[] line = new byte[256];
+
+  BtLineReader(File file, long offset) throws IOException {
+    this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+    this.size = channel.size();
+    this.offset = offset;
+  }
+
+  /** @return the byte offset of the next line to be read */
+  long offset() {
+    return offset;
+  }
+
+  long size() {
+    return size;
+  }
+
+  @Override public boolean hasNext() {
+    return offset < size;
+  }
+
+  @Override public String next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+    try {
+      int windowSize = WINDOW_SIZE;
+      while (true) {
+        if (window == null || offset < windowStart || offset >= windowStart + window.limit()) {
+          map(offset, windowSize);
+        }
+        int from = (int) (offset - windowStart);
+        int end = from;
+        while (end < window.limit() && window.get(end) != '\n') {
+          end++;
+        }
+        boolean complete = end < window.limit() || windowStart + window.limit() == size;
+        if (!complete) { // The line runs past the window, so map a larger one starting at the line
+          windowSize = (int) Math.min(Integer.MAX_VALUE, (long) windowSize * 2);
+          map(offset, windowSize);
+          continue;
+        }
+        int length = end - from;
+        offset = windowStart + end + (end < window.limit() ? 1 : 0);
+        if (length > 0 && window.get(from + length - 1) == '\r') {
+          length--;
+        }
+        if (line.length < length) {
+          line = new byte[Math.max(length, line.length * 2)];
+        }
+        window.duplicate().position(from).get(line, 0, length);
+        return new String(line, 0, length, StandardCharsets.UTF_8);
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+  }
+
+  private void map(long start, int windowSize) throws IOException {
+    windowStart = start;
+    window = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(windowSize, size - start));
+  }
+
+  @Override public void close() throws IOException {
+    channel.close();
+  }
+
+}
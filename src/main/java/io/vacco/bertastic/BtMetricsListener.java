@@ -0,0 +1,38 @@
+package io.vacco.bertastic;
+
+/**
+ * Receives timings and sizes for the work a {@link BtSession} does, stage by stage. Set one with
+ * {@link BtSessionOptions#metrics}; without one, sessions skip all measurements.
+ * <p>
+ * Methods may be called concurrently, from any thread running or copying a batch, and should return quickly.
+ *
+ * @see BtSessionMetrics
+ */
+public interface BtMetricsListener {
+
+  /**
+   * Called after input sequences are tokenized and encoded into inputIds, once per call for calls that take several
+   * sequences at a time, and once per sequence otherwise.
+   *
+   * @param sequences number of sequences encoded
+   * @param tokens number of tokens produced, before truncation
+   * @param truncated number of sequences that were cut down to the model's maximum sequence length
+   * @param nanos time spent encoding
+   */
+  void onEncode(int sequences, long tokens, int truncated, long nanos);
+
+  /**
+   * Called after each batch runs through the model, and its output has been read.
+   *
+   * @param batch the batch's sizes and stage timings
+   */
+  void onBatch(BtBatchStats batch);
+
+  /**
+   * Called when a call skips duplicate inputs, see {@link BtSessionOptions#deduplicate}.
+   *
+   * @param duplicates number of inputs that weren't run because an equal one was
+   */
+  default void onDuplicates(int duplicates) {}
+
+}
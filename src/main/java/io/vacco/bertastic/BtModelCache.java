@@ -0,0 +1,233 @@
+package io.vacco.bertastic;
+
+import java.io.*;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * An on-disk cache of extracted model archives, shared between processes.
+ * <p>
+ * Each archive is extracted once into a directory named after the SHA-256 hash of its contents, so later loads of the same
+ * archive skip extraction, and a changed archive never reuses a stale directory. Entries are extracted in parallel into a
+ * staging directory, which is then renamed into place while holding a file lock, so concurrent processes never see a partial
+ * model. The vocabulary is compiled into a snapshot while extracting, so sessions can map it instead of parsing it. Sessions loaded
+ * from the cache don't delete it when closed.
+ * <p>
+ * Hashing a large archive on every load would cost about as much as reading it, so the hash of a local archive (a file, or an
+ * entry in a jar) is remembered in a small reference file keyed by the archive's location, size and modification time. An
+ * archive is only hashed again when one of those changes.
+ */
+public class BtModelCache {
+
+  private static final String LOCK_SUFFIX = ".lock";
+  private static final String REF_SUFFIX = ".ref";
+  private static final String STAGING_INFIX = ".tmp-";
+
+  /** File locks are held by the whole JVM, so threads of the same process take turns before locking. */
+  private static final Object PROCESS_LOCK = new Object();
+
+  public final File root;
+
+  /**
+   * @param root directory holding cached models. It's created if missing.
+   */
+  public BtModelCache(File root) {
+    this.root = Objects.requireNonNull(root);
+  }
+
+  /**
+   * @return a cache in {@code ~/.bertastic/models}
+   */
+  public static BtModelCache inUserHome() {
+    return new BtModelCache(new File(new File(System.getProperty("user.home"), ".bertastic"), "models"));
+  }
+
+  /**
+   * Gets a model from the cache, extracting its archive first if it's not cached yet.
+   *
+   * @param archive a zip archive of the model, as created by the easy-bert Python utilities
+   * @return sources for the extracted model, which are not deleted when a session using them is closed
+   * @throws IOException if the archive can't be read or extracted
+   */
+  public BtModelSource get(URL archive) throws IOException {
+    Files.createDirectories(root.toPath());
+    var archiveFile = fileOf(archive);
+    var ref = refOf(archive, archiveFile);
+    var hash = ref != null ? readRef(ref) : null;
+    if (hash == null || !new File(root, hash).isDirectory()) {
+      try (var in = archiveFile != null ? new FileInputStream(archiveFile) : archive.openStream()) {
+        hash = sha256(in);
+      }
+    }
+    var dir = new File(root, hash);
+    if (!dir.isDirectory()) {
+      synchronized (PROCESS_LOCK) {
+        var lockPath = new File(root, hash + LOCK_SUFFIX).toPath();
+        try (var lockChannel = FileChannel.open(lockPath, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+          lockChannel.lock(); // Released when the channel is closed
+          if (!dir.isDirectory()) {
+            removeStaging(hash);
+            publish(archive, archiveFile, dir);
+          }
+        }
+      }
+    }
+    if (ref != null) {
+      writeRef(ref, hash);
+    }
+    var source = BtModelSource.from(dir);
+    source.deleteOnClose = false;
+    return source;
+  }
+
+  /**
+   * Removes staging directories left behind for an archive by a process that stopped while extracting it. Staging directories
+   * are only created while holding the archive's lock, so any that exist while this process holds it are abandoned.
+   */
+  private void removeStaging(String hash) {
+    var abandoned = root.listFiles((dir, name) -> name.startsWith(hash + STAGING_INFIX));
+    if (abandoned != null) {
+      for (var staging : abandoned) {
+        BtFileIO.delete(staging);
+      }
+    }
+  }
+
+  /**
+   * @return the reference file that remembers the hash of a local archive in its current state, or {@code null} if the archive's
+   *         size or modification time are unknown
+   */
+  private File refOf(URL archive, File archiveFile) throws IOException {
+    long size, modified;
+    if (archiveFile != null) {
+      size = archiveFile.length();
+      modified = archiveFile.lastModified();
+    } else if ("jar".equals(archive.getProtocol())) {
+      var connection = archive.openConnection();
+      connection.setUseCaches(false);
+      size = connection.getContentLengthLong();
+      modified = connection.getLastModified();
+      connection.getInputStream().close();
+    } else {
+      return null;
+    }
+    if (size < 0 || modified <= 0) {
+      return null;
+    }
+    var key = archive.toExternalForm() + '\n' + size + '\n' + modified;
+    return new File(root, sha256(new ByteArrayInputStream(key.getBytes(StandardCharsets.UTF_8))) + REF_SUFFIX);
+  }
+
+  private static String readRef(File ref) {
+    try {
+      var hash = Files.readString(ref.toPath(), StandardCharsets.UTF_8).trim();
+      return hash.isEmpty() ? null : hash;
+    } catch (IOException e) {
+      return null;
+    }
+  }
+
+  private void writeRef(File ref, String hash) throws IOException {
+    if (!hash.equals(readRef(ref))) {
+      var tmp = Files.createTempFile(root.toPath(), ref.getName(), ".tmp");
+      Files.writeString(tmp, hash, StandardCharsets.UTF_8);
+      Files.move(tmp, ref.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    }
+  }
+
+  private void publish(URL archive, File archiveFile, File dir) throws IOException {
+    var staging = Files.createTempDirectory(root.toPath(), dir.getName() + STAGING_INFIX).toFile();
+    File download = null;
+    try {
+      if (archiveFile == null) { // Random access is needed for parallel extraction
+        download = new File(staging, dir.getName() + ".zip");
+        try (var in = archive.openStream()) {
+          BtFileIO.copy(in, download, BtFileIO.BUFFER_SIZE);
+        }
+        archiveFile = download;
+      }
+      var content = new File(staging, dir.getName());
+      extract(archiveFile, content);
+      var source = BtModelSource.from(content);
+      if (source.vocabFile.isFile()) {
+        BtFull.compileVocabulary(source.vocabFile, source.vocabSnapshot);
+      }
+      Files.move(content.toPath(), dir.toPath(), StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      BtFileIO.delete(staging);
+    }
+  }
+
+  private static void extract(File archive, File outDir) throws IOException {
+    try (var zip = new ZipFile(archive)) {
+      var tasks = new ArrayList<Callable<Void>>();
+      for (var entries = zip.entries(); entries.hasMoreElements(); ) {
+        ZipEntry entry = entries.nextElement();
+        var outputFile = BtFileIO.entryFile(outDir, entry);
+        if (entry.isDirectory()) {
+          Files.createDirectories(outputFile.toPath());
+          continue;
+        }
+        Files.createDirectories(outputFile.getParentFile().toPath());
+        tasks.add(() -> {
+          try (var in = zip.getInputStream(entry)) {
+            BtFileIO.copy(in, outputFile, entry.getSize());
+          }
+          return null;
+        });
+      }
+      for (var task : ForkJoinPool.commonPool().invokeAll(tasks)) {
+        try {
+          task.get();
+        } catch (ExecutionException e) {
+          if (e.getCause() instanceof IOException) {
+            throw (IOException) e.getCause();
+          }
+          throw new IllegalStateException("Unable to extract model archive", e.getCause());
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException("Interrupted while extracting model archive");
+        }
+      }
+    }
+  }
+
+  private static File fileOf(URL archive) {
+    if (!"file".equals(archive.getProtocol())) {
+      return null;
+    }
+    try {
+      return new File(archive.toURI());
+    } catch (URISyntaxException | IllegalArgumentException e) {
+      return null;
+    }
+  }
+
+  private static String sha256(InputStream in) throws IOException {
+    try {
+      var digest = MessageDigest.getInstance("SHA-256");
+      var buffer = new byte[BtFileIO.BUFFER_SIZE];
+      int length;
+      while ((length = in.read(buffer)) > 0) {
+        digest.update(buffer, 0, length);
+      }
+      var hex = new StringBuilder();
+      for (byte b : digest.digest()) {
+        hex.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+      }
+      return hex.toString();
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("SHA-256 is not available", e);
+    }
+  }
+
+}
@@ -8,14 +8,25 @@ public class BtModelSource {
   private static final String ASSETS = "assets";
   private static final String MODEL_DETAILS = "model.json";
   private static final String VOCAB_FILE = "vocab.txt";
+  private static final String VOCAB_SNAPSHOT = "vocab.btv";
 
   public File modelDetails, bundleDir, vocabFile;
 
+  /**
+   * A compiled snapshot of {@link #vocabFile}, written by {@link BtFull#compileVocabulary(File, File)}. Sessions map it instead of
+   * parsing the vocabulary when it exists and is newer than the vocabulary file.
+   */
+  public File vocabSnapshot;
+
+  /** Whether closing a session deletes {@link #bundleDir}. Models shared through a {@link BtModelCache} are kept. */
+  public boolean deleteOnClose = true;
+
   public static BtModelSource from(File bertRoot) {
     var mb = new BtModelSource();
     var assets = new File(Objects.requireNonNull(bertRoot), ASSETS);
     mb.modelDetails = new File(assets, MODEL_DETAILS);
     mb.vocabFile = new File(assets, VOCAB_FILE);
+    mb.vocabSnapshot = new File(assets, VOCAB_SNAPSHOT);
     mb.bundleDir = bertRoot;
     return mb;
   }
@@ -0,0 +1,14 @@
+package io.vacco.bertastic;
+
+/**
+ * How a batch of sequences is padded before it's fed to the model.
+ */
+public enum BtPadding {
+
+  /** Every sequence is padded to the model's maximum sequence length. */
+  MODEL_MAX,
+
+  /** Sequences are padded to the longest sequence in their batch. */
+  BATCH_LONGEST
+
+}
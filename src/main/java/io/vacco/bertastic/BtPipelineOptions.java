@@ -0,0 +1,22 @@
+package io.vacco.bertastic;
+
+import java.util.concurrent.ForkJoinPool;
+
+public class BtPipelineOptions {
+
+  /** Number of sequences read from the input and delivered to the consumer at a time. */
+  public int chunkSize = 256;
+
+  /**
+   * Maximum number of chunks being tokenized ahead of the one the model is running, and of chunks whose output is still being
+   * copied. Memory use is bounded by about twice this many chunks of inputs and outputs.
+   */
+  public int depth = 2;
+
+  /**
+   * The pool that tokenizes chunks and copies model output. Its tasks never wait on the model, which runs on the calling thread,
+   * so the common pool is a safe default. A dedicated pool keeps the pipeline from competing with other users of the common pool.
+   */
+  public ForkJoinPool pool = ForkJoinPool.commonPool();
+
+}
@@ -0,0 +1,52 @@
+package io.vacco.bertastic;
+
+import org.tensorflow.ndarray.buffer.FloatDataBuffer;
+
+/**
+ * Ways of reducing a sequence to a single embedding vector.
+ */
+public enum BtPooling {
+
+  /** The model's pooled output, derived from the {@code [CLS]} token. */
+  CLS,
+
+  /** The mean of the token embeddings under the input mask, including the start and separator tokens. */
+  MEAN,
+
+  /** The element-wise maximum of the token embeddings under the input mask, including the start and separator tokens. */
+  MAX;
+
+  /**
+   * Reduces {@code length} consecutive token rows of one sequence in a {@code [batch][tokens][dimensions]} buffer, reading straight
+   * from the buffer one row at a time.
+   *
+   * @param tokens    token embeddings for the whole batch
+   * @param sequence  index of the sequence in the batch
+   * @param rows      number of token rows per sequence
+   * @param first     index of the first row to reduce
+   * @param length    number of rows to reduce, e.g. the number under the input mask
+   * @param row       scratch space for one token row, at least {@code dimensions} long
+   * @param out       the array to write the pooled vector into
+   * @param offset    index in {@code out} of the first value to write
+   */
+  void reduce(FloatDataBuffer tokens, int sequence, int rows, int first, int length, float[] row, float[] out, int offset) {
+    int dimensions = row.length;
+    long base = ((long) sequence * rows + first) * dimensions;
+    for (int t = 0; t < length; t++) {
+      tokens.slice(base + (long) t * dimensions, dimensions).read(row);
+      for (int d = 0; d < dimensions; d++) {
+        if (this == MAX) {
+          out[offset + d] = t == 0 ? row[d] : Math.max(out[offset + d], row[d]);
+        } else {
+          out[offset + d] += row[d];
+        }
+      }
+    }
+    if (this == MEAN) {
+      for (int d = 0; d < dimensions; d++) {
+        out[offset + d] /= length;
+      }
+    }
+  }
+
+}
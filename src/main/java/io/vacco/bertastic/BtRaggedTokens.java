@@ -0,0 +1,76 @@
+package io.vacco.bertastic;
+
+import java.util.Arrays;
+
+/**
+ * Token embeddings for a batch of sequences, holding only the rows of real tokens, back to back in a single array.
+ * <p>
+ * Sequence {@code i} has {@code offsets[i + 1] - offsets[i]} rows of {@link #dimensions} floats each, starting at
+ * {@code values[offsets[i] * dimensions]}. Rows are either sub-tokens, in the order of {@link BtFull#encode(String)}, or whole
+ * words, in the order of {@link #words}.
+ */
+public class BtRaggedTokens {
+
+  /** The rows of all sequences, back to back. */
+  public final float[] values;
+
+  /** Index of the first row of each sequence, followed by the total number of rows. */
+  public final int[] offsets;
+
+  /** Number of floats in a row. */
+  public final int dimensions;
+
+  /** For word rows, the {@link BtBasic} words of each sequence, one per row. {@code null} for sub-token rows. */
+  public final String[][] words;
+
+  public BtRaggedTokens(float[] values, int[] offsets, int dimensions, String[][] words) {
+    this.values = values;
+    this.offsets = offsets;
+    this.dimensions = dimensions;
+    this.words = words;
+  }
+
+  /**
+   * @return the number of sequences
+   */
+  public int size() {
+    return offsets.length - 1;
+  }
+
+  /**
+   * @return the number of rows of a sequence
+   */
+  public int length(int sequence) {
+    return offsets[sequence + 1] - offsets[sequence];
+  }
+
+  /**
+   * @return the index in {@link #values} of the first value of a row
+   */
+  public int offset(int sequence, int row) {
+    return (offsets[sequence] + row) * dimensions;
+  }
+
+  /**
+   * @return a copy of one row of a sequence
+   */
+  public float[] row(int sequence, int row) {
+    if (row < 0 || row >= length(sequence)) {
+      throw new IndexOutOfBoundsException("Row " + row + " of a sequence with " + length(sequence) + " rows");
+    }
+    int from = offset(sequence, row);
+    return Arrays.copyOfRange(values, from, from + dimensions);
+  }
+
+  /**
+   * @return copies of all rows of a sequence
+   */
+  public float[][] rows(int sequence) {
+    var out = new float[length(sequence)][];
+    for (int r = 0; r < out.length; r++) {
+      out[r] = row(sequence, r);
+    }
+    return out;
+  }
+
+}
@@ -2,30 +2,95 @@ package io.vacco.bertastic;
 
 import org.tensorflow.Result;
 import org.tensorflow.SavedModelBundle;
-import org.tensorflow.Tensor;
+import org.tensorflow.Session;
 import org.tensorflow.ndarray.StdArrays;
 import org.tensorflow.ndarray.buffer.DataBuffers;
+import org.tensorflow.ndarray.buffer.FloatDataBuffer;
+import org.tensorflow.proto.framework.ConfigProto;
+import org.tensorflow.proto.framework.GraphOptions;
+import org.tensorflow.proto.framework.OptimizerOptions;
+import org.tensorflow.proto.framework.RewriterConfig;
 import org.tensorflow.types.TFloat32;
 
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileReader;
 import java.io.IOException;
-import java.nio.IntBuffer;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.FloatBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Iterator;
-import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 
 public class BtSession implements AutoCloseable {
 
   protected final BtModelDetails model;
 
+  private final BtSessionOptions options;
   private final BtModelSource modelSource;
   private final SavedModelBundle bundle;
+  private final Session session;
   private final int separatorTokenId;
   private final int startTokenId;
   private final BtFull tokenizer;
+  private final BtInputPool inputPool;
+  private final BtMetricsListener metrics;
 
   private static final String SEPARATOR_TOKEN = "[SEP]";
   private static final String START_TOKEN = "[CLS]";
+  private static final String VARIABLES_DIR = "variables";
+  private static final System.Logger LOG = System.getLogger(BtSession.class.getName());
+
+  @FunctionalInterface
+  private interface BatchOutput {
+    void accept(int[] batch, Result output);
+  }
+
+  @FunctionalInterface
+  private interface RowOutput {
+    void accept(int sequence, float[] row);
+  }
+
+  /** A chunk of sequences going through the pipeline, with its native inputs filled in ahead of running the model. */
+  private static final class Chunk implements AutoCloseable {
+    final BtEncoding ids;
+    final int[][] batches;
+    final BtInputs[] inputs;
+    final long[] inputsNanos;
+
+    Chunk(BtEncoding ids, int[][] batches) {
+      this.ids = ids;
+      this.batches = batches;
+      this.inputs = new BtInputs[batches.length];
+      this.inputsNanos = new long[batches.length];
+    }
+
+    @Override public void close() {
+      for (var in : inputs) {
+        if (in != null) {
+          in.close();
+        }
+      }
+    }
+  }
+
+  private static final int ENCODE_SLICE = 16;
 
   /**
    * Loads a pre-trained BERT model from a TensorFlow saved model saved by the easy-bert Python utilities
@@ -34,25 +99,151 @@ public class BtSession implements AutoCloseable {
    * @return a ready-to-use BERT model
    */
   public static BtSession load(BtModelSource ms, BtJsonInput ji) {
+    return load(ms, ji, new BtSessionOptions());
+  }
+
+  /**
+   * Loads a pre-trained BERT model from a TensorFlow saved model saved by the easy-bert Python utilities
+   * @param ms model file sources.
+   * @param ji JSON input function (can be used with Gson or Jackson).
+   * @param options session options.
+   * @return a ready-to-use BERT model
+   */
+  public static BtSession load(BtModelSource ms, BtJsonInput ji, BtSessionOptions options) {
+    return load(ms, ji, options, configOf(options, options.intraOpThreads, options.perSessionThreads));
+  }
+
+  static BtSession load(BtModelSource ms, BtJsonInput ji, BtSessionOptions options, ConfigProto config) {
     try {
       var model = (BtModelDetails) ji.fromJson(new FileReader(ms.modelDetails), BtModelDetails.class);
-      var bundle = SavedModelBundle.load(ms.bundleDir.getAbsolutePath(), "serve");
-      return new BtSession(ms, bundle, model, ms.vocabFile);
+      var tokenizer = tokenizerOf(ms, model);
+      var bundle = SavedModelBundle.loader(ms.bundleDir.getAbsolutePath())
+          .withTags("serve")
+          .withConfigProto(config)
+          .load();
+      return new BtSession(ms, bundle, model, tokenizer, options).warmedUp();
     } catch (IOException e) {
       throw new RuntimeException("Unable to load BERT model", e);
     }
   }
 
-  private BtSession(BtModelSource modelSource, SavedModelBundle bundle, BtModelDetails model, File vocabulary) {
-    tokenizer = new BtFull(vocabulary, model.doLowerCase);
+  private BtSession(BtModelSource modelSource, SavedModelBundle bundle, BtModelDetails model,
+                    BtFull tokenizer, BtSessionOptions options) {
+    this.tokenizer = tokenizer;
     this.modelSource = modelSource;
     this.bundle = bundle;
+    this.session = bundle.session();
     this.model = model;
+    this.options = options;
+    this.inputPool = new BtInputPool(options.inputPoolSize);
+    this.metrics = options.metrics;
     int[] ids = tokenizer.convert(new String[]{START_TOKEN, SEPARATOR_TOKEN});
     startTokenId = ids[0];
     separatorTokenId = ids[1];
   }
 
+  private static BtFull tokenizerOf(BtModelSource ms, BtModelDetails model) throws IOException {
+    var snapshot = ms.vocabSnapshot;
+    if (snapshot != null && snapshot.isFile() && snapshot.lastModified() >= ms.vocabFile.lastModified()) {
+      return new BtFull(BtTrie.map(snapshot), model.doLowerCase);
+    }
+    return new BtFull(ms.vocabFile, model.doLowerCase);
+  }
+
+  /** Creates a session over the graph of another one, with its own TensorFlow session and a copy of the model's variables. */
+  private BtSession(BtSession parent, Session session) {
+    this.tokenizer = parent.tokenizer;
+    this.modelSource = parent.modelSource;
+    this.bundle = null;
+    this.session = session;
+    this.model = parent.model;
+    this.options = parent.options;
+    this.inputPool = parent.inputPool;
+    this.metrics = parent.metrics;
+    this.startTokenId = parent.startTokenId;
+    this.separatorTokenId = parent.separatorTokenId;
+  }
+
+  static ConfigProto configOf(BtSessionOptions options, int intraOpThreads, boolean perSessionThreads) {
+    return ConfigProto.newBuilder()
+        .setIntraOpParallelismThreads(intraOpThreads)
+        .setInterOpParallelismThreads(options.interOpThreads)
+        .setUsePerSessionThreads(perSessionThreads)
+        .setExperimental(ConfigProto.Experimental.newBuilder().setUseNumaAffinity(options.numaAffinity))
+        .setGraphOptions(GraphOptions.newBuilder()
+            .setOptimizerOptions(OptimizerOptions.newBuilder().setGlobalJitLevel(
+                options.xlaJit ? OptimizerOptions.GlobalJitLevel.ON_1 : OptimizerOptions.GlobalJitLevel.DEFAULT))
+            .setRewriteOptions(RewriterConfig.newBuilder()
+                .setDisableMetaOptimizer(!options.graphOptimizations)
+                .setAutoMixedPrecisionOnednnBfloat16(options.bfloat16 ? RewriterConfig.Toggle.ON : RewriterConfig.Toggle.DEFAULT)))
+        .build();
+  }
+
+  /** Runs the configured warmup shapes, closing the session if that fails. */
+  private BtSession warmedUp() {
+    try {
+      warmup(options.warmupShapes);
+      return this;
+    } catch (RuntimeException e) {
+      close();
+      throw e;
+    }
+  }
+
+  /**
+   * Runs a dummy batch through the model for each of several input shapes, so that TensorFlow sets up kernels and memory for
+   * them ahead of real calls. Input tensors for the shapes are also left in the input pool. The time each shape takes is logged
+   * at {@code INFO} level.
+   *
+   * @param shapes {@code {batchSize, sequenceLength}} pairs. Lengths are padded as calls would pad them.
+   */
+  public void warmup(int[] ... shapes) {
+    for (var shape : shapes) {
+      if (shape.length != 2 || shape[0] < 1 || shape[1] < 1) {
+        throw new IllegalArgumentException(
+            "Warmup shapes must be positive {batchSize, sequenceLength} pairs: " + Arrays.toString(shape));
+      }
+      int tokens = Math.min(shape[1], model.maxSequenceLength) - 2;
+      var ids = new int[shape[0] * Math.max(0, tokens)];
+      var offsets = new int[shape[0] + 1];
+      for (int i = 0; i < shape[0]; i++) {
+        offsets[i + 1] = offsets[i] + Math.max(0, tokens);
+      }
+      Arrays.fill(ids, separatorTokenId);
+      var encoding = new BtEncoding(ids, offsets, null);
+      var batch = allOf(encoding);
+      int sequenceLength = paddedLength(encoding, batch);
+      long start = System.nanoTime();
+      try (var inputs = getInputs(encoding, batch, sequenceLength)) {
+        run(inputs, model.pooledOutput).close(); // Only the run matters, not its output
+        LOG.log(System.Logger.Level.INFO, "Warmed up batch shape {0,number,#}x{1,number,#} in {2,number,#.###} ms",
+            shape[0], sequenceLength, (System.nanoTime() - start) / 1_000_000.0);
+      }
+    }
+  }
+
+  /**
+   * Opens another TensorFlow session over this session's model graph, restoring the model's variables into it. The new session
+   * shares this session's tokenizer and input tensor pool, and must be closed before this one.
+   *
+   * @throws IllegalStateException if the model has no saved variables to restore
+   */
+  BtSession fork(ConfigProto config) {
+    var variables = new File(new File(modelSource.bundleDir, VARIABLES_DIR), VARIABLES_DIR);
+    var index = new File(variables.getPath() + ".index");
+    if (!index.exists()) {
+      throw new IllegalStateException("Unable to fork session, model variables are missing: " + index.getAbsolutePath());
+    }
+    var forked = new Session(bundle.graph(), config);
+    try {
+      forked.restore(variables.getAbsolutePath());
+    } catch (RuntimeException e) {
+      forked.close();
+      throw e;
+    }
+    return new BtSession(this, forked).warmedUp(); // Closes the forked session if warmup fails
+  }
+
   /**
    * Gets pooled BERT embeddings for multiple sequences. Sequences are usually individual sentences, but don't have to be.
    * The sequences will be processed in parallel as a single batch input to the TensorFlow model.
@@ -83,17 +274,618 @@ public class BtSession implements AutoCloseable {
    * @return the pooled embeddings for the sequences, in the order they were provided
    */
   public float[][] embedSequences(String ... sequences) {
-    try (var inputs = getInputs(sequences)) {
-      Result output = bundle.session().runner()
-                            .feed(model.inputIds, inputs.inputIds)
-                            .feed(model.inputMask, inputs.inputMask)
-                            .feed(model.segmentIds, inputs.segmentIds)
-                            .fetch(model.pooledOutput)
-                            .run();
-      try (var embedding = output.get(0)) {
-        return StdArrays.array2dCopyOf((TFloat32) embedding);
+    var firstOf = options.deduplicate ? firstOccurrences(sequences) : null;
+    if (firstOf != null) {
+      return embedDistinct(firstOf, distinct -> {
+        var texts = new String[distinct.length];
+        for (int i = 0; i < distinct.length; i++) {
+          texts[i] = sequences[distinct[i]];
+        }
+        return embedSequences(texts);
+      });
+    }
+    var cache = options.cache;
+    if (cache != null && cache.key == BtCache.Key.TEXT) {
+      var keys = new Object[sequences.length];
+      for (int i = 0; i < sequences.length; i++) {
+        keys[i] = BtCache.textKey(sequences[i], model.doLowerCase);
+      }
+      return cache.getAll(keys, missed -> {
+        var missedSequences = new String[missed.length];
+        for (int i = 0; i < missed.length; i++) {
+          missedSequences[i] = sequences[missed[i]];
+        }
+        return embedBatches(encode(missedSequences));
+      });
+    }
+    return embedEncoded(encode(sequences));
+  }
+
+  /**
+   * Gets pooled BERT embeddings for sequences that were already encoded, e.g. with {@link BtFull#encodeBatch(String...)} on
+   * another thread. Sequences with more inputIds than fit the model are truncated.
+   *
+   * @param encoding the inputIds of the sequences to embed
+   * @return the pooled embeddings for the sequences, in the order they were encoded
+   */
+  public float[][] embedSequences(BtEncoding encoding) {
+    return embedEncoded(encoding.truncate(model.maxSequenceLength - 2));
+  }
+
+  /**
+   * Gets pooled BERT embeddings for sequences that were already encoded with {@link #encode(String)}.
+   */
+  float[][] embedSequences(int[][] ids) {
+    return embedEncoded(BtEncoding.of(ids));
+  }
+
+  private float[][] embedEncoded(BtEncoding ids) {
+    var firstOf = options.deduplicate ? ids.firstOccurrences() : null;
+    if (firstOf != null) {
+      return embedDistinct(firstOf, distinct -> embedEncoded(ids.subset(distinct)));
+    }
+    var cache = options.cache;
+    if (cache != null && cache.key == BtCache.Key.TOKEN_IDS) {
+      var keys = new Object[ids.size()];
+      for (int i = 0; i < keys.length; i++) {
+        keys[i] = BtCache.idsKey(ids.ids(i));
+      }
+      return cache.getAll(keys, missed -> embedBatches(ids.subset(missed)));
+    }
+    return embedBatches(ids);
+  }
+
+  /**
+   * @return for each sequence, the index of the first one with equal text, or {@code null} if all are distinct
+   */
+  private static int[] firstOccurrences(String[] sequences) {
+    var first = new HashMap<String, Integer>(sequences.length * 2);
+    int[] firstOf = null;
+    for (int i = 0; i < sequences.length; i++) {
+      var j = first.putIfAbsent(sequences[i], i);
+      if (j != null) {
+        if (firstOf == null) {
+          firstOf = allOf(sequences.length);
+        }
+        firstOf[i] = j;
+      }
+    }
+    return firstOf;
+  }
+
+  /**
+   * Embeds only the first of each group of equal inputs, and reports how many were skipped.
+   *
+   * @see BtEncoding#embedDistinct(int[], Function)
+   */
+  private float[][] embedDistinct(int[] firstOf, Function<int[], float[][]> embed) {
+    return BtEncoding.embedDistinct(firstOf, distinct -> {
+      if (metrics != null) {
+        metrics.onDuplicates(firstOf.length - distinct.length);
+      }
+      return embed.apply(distinct);
+    });
+  }
+
+  private float[][] embedBatches(BtEncoding ids) {
+    var out = new float[ids.size()][];
+    runBatches(ids, new String[] {model.pooledOutput}, (batch, output) -> copyRows((TFloat32) output.get(0), batch, out));
+    return out;
+  }
+
+  /**
+   * Gets pooled BERT embeddings for a sequence source of any length, lazily. Sequences are read and embedded one batch at a time
+   * as the returned stream is consumed, and batches are cut so that their padded input tensors hold at most
+   * {@code maxBatchTokens} tokens, so memory use is bounded by the batch budget rather than by the input size.
+   *
+   * @param sequences the sequences to embed
+   * @param maxBatchTokens maximum number of tokens in a batch, padding included. A sequence longer than this runs alone.
+   * @return the pooled embeddings for the sequences, in the order the {@link java.util.Iterator} provided them
+   */
+  public Stream<float[]> streamSequences(Iterator<String> sequences, int maxBatchTokens) {
+    return batchStream(new TokenBatches(sequences, maxBatchTokens, false))
+        .flatMap(ids -> Arrays.stream(embedSequences(ids)));
+  }
+
+  /**
+   * @see #streamSequences(Iterator, int)
+   * @return the pooled embeddings for the sequences, in the order the {@link java.util.stream.Stream} provided them. Closing it
+   *         closes {@code sequences}.
+   */
+  public Stream<float[]> streamSequences(Stream<String> sequences, int maxBatchTokens) {
+    return streamSequences(sequences.iterator(), maxBatchTokens).onClose(sequences::close);
+  }
+
+  /**
+   * @see #streamSequences(Iterator, int)
+   * @param lines a source of sequences, one per line
+   * @return the pooled embeddings for the lines, in order. Closing it closes {@code lines}.
+   */
+  public Stream<float[]> streamSequences(Reader lines, int maxBatchTokens) {
+    var reader = new BufferedReader(lines);
+    return streamSequences(reader.lines().onClose(() -> {
+      try {
+        reader.close();
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }), maxBatchTokens);
+  }
+
+  /**
+   * Gets pooled BERT embeddings for a sequence source of any length, handing each batch to a callback as soon as it's done.
+   * The next batch is only read from the source once the callback returns, so a slow consumer holds the producer back.
+   *
+   * @param sequences the sequences to embed
+   * @param maxBatchTokens maximum number of tokens in a batch, padding included. A sequence longer than this runs alone.
+   * @param consumer receives the pooled embeddings of each batch, in input order
+   */
+  public void streamSequences(Iterator<String> sequences, int maxBatchTokens, Consumer<float[][]> consumer) {
+    var batches = new TokenBatches(sequences, maxBatchTokens, false);
+    while (batches.hasNext()) {
+      consumer.accept(embedSequences(batches.next()));
+    }
+  }
+
+  /**
+   * Gets BERT token embeddings for a sequence source of any length, lazily, one batch of sequences at a time. Since token
+   * embeddings are padded to the model's maximum sequence length, each batch holds at most
+   * {@code maxBatchTokens / maxSequenceLength} sequences.
+   *
+   * @param sequences the sequences to embed
+   * @param maxBatchTokens maximum number of tokens in a batch, padding included
+   * @return the token embeddings for each sequence, in the order the {@link java.util.Iterator} provided them
+   */
+  public Stream<float[][]> streamTokens(Iterator<String> sequences, int maxBatchTokens) {
+    return batchStream(new TokenBatches(sequences, maxBatchTokens, true)).flatMap(ids -> {
+      var out = new float[1][][][];
+      runTokens(BtEncoding.of(ids), output -> out[0] = StdArrays.array3dCopyOf(output));
+      return Arrays.stream(out[0]);
+    });
+  }
+
+  private static Stream<int[][]> batchStream(Iterator<int[][]> batches) {
+    return StreamSupport.stream(Spliterators.spliteratorUnknownSize(batches, Spliterator.ORDERED | Spliterator.NONNULL), false);
+  }
+
+  /** Encodes sequences lazily and groups them into batches whose padded size fits a token budget. */
+  private final class TokenBatches implements Iterator<int[][]> {
+    private final Iterator<String> sequences;
+    private final long maxBatchTokens;
+    private final boolean padToModel;
+    private int[] carry;
+
+    TokenBatches(Iterator<String> sequences, int maxBatchTokens, boolean padToModel) {
+      if (maxBatchTokens < 1) {
+        throw new IllegalArgumentException("Token budget must be positive: " + maxBatchTokens);
+      }
+      this.sequences = sequences;
+      this.maxBatchTokens = maxBatchTokens;
+      this.padToModel = padToModel;
+    }
+
+    @Override public boolean hasNext() {
+      return carry != null || sequences.hasNext();
+    }
+
+    @Override public int[][] next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      var batch = new ArrayList<int[]>();
+      int longest = 0;
+      while (carry != null || sequences.hasNext()) {
+        var ids = carry != null ? carry : encode(sequences.next());
+        carry = null;
+        int length = Math.max(longest, padToModel ? model.maxSequenceLength : paddedTokens(ids));
+        if (!batch.isEmpty() && (long) length * (batch.size() + 1) > maxBatchTokens) {
+          carry = ids;
+          break;
+        }
+        batch.add(ids);
+        longest = length;
+      }
+      return batch.toArray(new int[0][]);
+    }
+  }
+
+  /**
+   * Gets pooled BERT embeddings for a large number of sequences, pipelining the work. While the model runs one chunk of sequences,
+   * the next chunks are tokenized and written into native input tensors in parallel on a {@link java.util.concurrent.ForkJoinPool},
+   * and the output of the previous chunk is copied to the Java heap. At most {@link BtPipelineOptions#depth} chunks are in each
+   * stage at a time, so memory use stays flat however long the input is. The session's cache is not used.
+   *
+   * @param sequences the sequences to embed. The iterator is only used from the calling thread.
+   * @param pipeline chunk size, depth and thread pool options
+   * @param consumer receives the pooled embeddings of each chunk, in input order, on the calling thread
+   */
+  public void embedSequences(Iterator<String> sequences, BtPipelineOptions pipeline, Consumer<float[][]> consumer) {
+    int depth = Math.max(1, pipeline.depth);
+    var encoding = new ArrayDeque<CompletableFuture<Chunk>>();
+    var copying = new ArrayDeque<CompletableFuture<float[][]>>();
+    try {
+      while (true) {
+        while (encoding.size() < depth && sequences.hasNext()) {
+          var chunk = new ArrayList<String>(pipeline.chunkSize);
+          while (chunk.size() < pipeline.chunkSize && sequences.hasNext()) {
+            chunk.add(sequences.next());
+          }
+          var texts = chunk.toArray(new String[0]);
+          encoding.add(CompletableFuture.supplyAsync(() -> prepare(texts), pipeline.pool));
+        }
+        if (encoding.isEmpty()) {
+          break;
+        }
+        copying.add(execute(await(encoding.poll()), pipeline.pool));
+        while (copying.size() >= depth) {
+          consumer.accept(await(copying.poll()));
+        }
+      }
+      while (!copying.isEmpty()) {
+        consumer.accept(await(copying.poll()));
+      }
+    } finally { // Let work in flight finish, so that no native tensors outlive the call
+      for (var f : encoding) {
+        f.handle((chunk, e) -> {
+          if (chunk != null) {
+            chunk.close();
+          }
+          return null;
+        }).join();
+      }
+      for (var f : copying) {
+        f.handle((rows, e) -> rows).join();
+      }
+    }
+  }
+
+  private static <T> T await(CompletableFuture<T> future) {
+    try {
+      return future.join();
+    } catch (CompletionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      throw e;
+    }
+  }
+
+  /** Tokenizes a chunk in parallel slices, then fills in its native inputs. Runs in the pipeline's pool. */
+  private Chunk prepare(String[] sequences) {
+    long start = now();
+    var ids = new int[sequences.length][];
+    var slices = new ArrayList<ForkJoinTask<?>>();
+    for (int from = 0; from < sequences.length; from += ENCODE_SLICE) {
+      int first = from, end = Math.min(from + ENCODE_SLICE, sequences.length);
+      slices.add(ForkJoinTask.adapt(() -> {
+        for (int i = first; i < end; i++) {
+          ids[i] = tokenizer.encode(sequences[i]);
+        }
+      }));
+    }
+    ForkJoinTask.invokeAll(slices);
+    var encoding = BtEncoding.of(truncate(ids, start));
+    var chunk = new Chunk(encoding, batchesOf(encoding));
+    try {
+      for (int b = 0; b < chunk.batches.length; b++) {
+        long filling = now();
+        chunk.inputs[b] = getInputs(encoding, chunk.batches[b], paddedLength(encoding, chunk.batches[b]));
+        chunk.inputsNanos[b] = now() - filling;
+      }
+    } catch (RuntimeException e) {
+      chunk.close();
+      throw e;
+    }
+    return chunk;
+  }
+
+  /** Runs a prepared chunk on the calling thread, and copies its output on the pipeline's pool. */
+  private CompletableFuture<float[][]> execute(Chunk chunk, ForkJoinPool pool) {
+    var out = new float[chunk.ids.size()][];
+    var copies = new CompletableFuture<?>[chunk.batches.length];
+    try (chunk) {
+      for (int b = 0; b < chunk.batches.length; b++) {
+        var batch = chunk.batches[b];
+        var inputs = chunk.inputs[b];
+        long start = now();
+        var result = run(inputs, model.pooledOutput);
+        long runNanos = now() - start, inputsNanos = chunk.inputsNanos[b];
+        long inputBytes = metrics != null ? bytesOf(inputs) : 0;
+        int sequenceLength = inputs.sequenceLength;
+        copies[b] = CompletableFuture.runAsync(() -> {
+          try (result) {
+            long copying = now();
+            copyRows((TFloat32) result.get(0), batch, out);
+            if (metrics != null) {
+              report(chunk.ids, batch, sequenceLength, inputBytes + bytesOf(result), inputsNanos, runNanos, now() - copying);
+            }
+          }
+        }, pool);
+      }
+    } catch (RuntimeException e) {
+      for (var copy : copies) {
+        if (copy != null) {
+          copy.handle((v, x) -> v).join();
+        }
+      }
+      throw e;
+    }
+    return CompletableFuture.allOf(copies).thenApply(v -> out);
+  }
+
+  /**
+   * Gets pooled BERT embeddings for multiple sequences, copying them straight from the output tensor into a caller-supplied buffer.
+   * Embeddings are written back to back in input order, starting at the buffer's position, which is then advanced past them.
+   * The session's cache is not used.
+   *
+   * @param out the buffer to write into
+   * @param sequences the sequences to embed
+   * @throws BufferOverflowException if the buffer doesn't have room for all embeddings
+   */
+  public void embedSequences(FloatBuffer out, String ... sequences) {
+    var dst = out.slice();
+    runBatches(encode(sequences), new String[] {model.pooledOutput},
+        (batch, output) -> copyRows((TFloat32) output.get(0), batch, sequences.length, dst));
+    out.position(out.position() + dst.position());
+  }
+
+  /**
+   * Gets pooled BERT embeddings for multiple sequences as float32 values, copying them straight from the output tensor into a
+   * caller-supplied buffer (typically a direct one), using the buffer's byte order.
+   * Embeddings are written back to back in input order, starting at the buffer's position, which is then advanced past them.
+   * The session's cache is not used.
+   *
+   * @param out the buffer to write into
+   * @param sequences the sequences to embed
+   * @throws BufferOverflowException if the buffer doesn't have room for all embeddings
+   */
+  public void embedSequences(ByteBuffer out, String ... sequences) {
+    var dst = out.slice().order(out.order()).asFloatBuffer();
+    embedSequences(dst, sequences);
+    out.position(out.position() + dst.position() * Float.BYTES);
+  }
+
+  /**
+   * Gets pooled BERT embeddings for multiple sequences, copying them straight from the output tensor into a flat array.
+   * The session's cache is not used.
+   *
+   * @param out the array to write into
+   * @param offset index in {@code out} where the embedding of the first sequence starts
+   * @param stride distance in {@code out} between the starts of consecutive embeddings
+   * @param sequences the sequences to embed
+   */
+  public void embedSequences(float[] out, int offset, int stride, String ... sequences) {
+    runBatches(encode(sequences), new String[] {model.pooledOutput},
+        (batch, output) -> copyRows((TFloat32) output.get(0), batch, out, offset, stride));
+  }
+
+  /**
+   * Gets pooled BERT embeddings for multiple sequences as a view over the output tensor, without copying it.
+   * The sequences run as a single batch, and the session's cache is not used.
+   *
+   * @param sequences the sequences to embed
+   * @return a view of the pooled embeddings, in the order they were provided. It must be closed by the caller.
+   */
+  public BtTensorView viewSequences(String ... sequences) {
+    var ids = encode(sequences);
+    var batch = allOf(ids);
+    long start = now();
+    try (var inputs = getInputs(ids, batch, paddedLength(ids, batch))) {
+      long filled = now();
+      return viewOf(ids, batch, inputs, run(inputs, model.pooledOutput), start, filled);
+    }
+  }
+
+  /** Wraps the single output of a run in a view, closing it if reporting the batch fails. */
+  private BtTensorView viewOf(BtEncoding ids, int[] batch, BtInputs inputs, Result result, long start, long filled) {
+    var view = new BtTensorView((TFloat32) result.get(0));
+    try {
+      if (metrics != null) {
+        report(ids, batch, inputs, result, start, filled, now(), now());
+      }
+      return view;
+    } catch (RuntimeException e) {
+      view.close();
+      throw e;
+    }
+  }
+
+  /**
+   * Gets pooled BERT embeddings for multiple sequences, scaled to unit length, so that their dot products are cosine similarities.
+   * The session's cache is not used.
+   *
+   * @param sequences the sequences to embed
+   * @return the normalized embeddings for the sequences, in the order they were provided
+   */
+  public float[][] embedNormalized(String ... sequences) {
+    var out = new float[sequences.length][];
+    readPooledRows(sequences, (i, row) -> out[i] = BtVectors.normalize(row.clone()));
+    return out;
+  }
+
+  /**
+   * Gets pooled BERT embeddings for multiple sequences in half precision, at half the size of floats. Each row is converted as
+   * it's read from the output tensor. The session's cache is not used.
+   *
+   * @param sequences the sequences to embed
+   * @return the embeddings for the sequences as IEEE 754 binary16 values, in the order they were provided
+   * @see BtVectors#dot(short[], short[])
+   */
+  public short[][] embedHalf(String ... sequences) {
+    var out = new short[sequences.length][];
+    readPooledRows(sequences, (i, row) -> out[i] = BtVectors.toHalf(row));
+    return out;
+  }
+
+  /**
+   * Gets pooled BERT embeddings for multiple sequences quantized to signed bytes, at a quarter of the size of floats. Each row is
+   * converted as it's read from the output tensor. The session's cache is not used.
+   *
+   * @param sequences the sequences to embed
+   * @return the quantized embeddings for the sequences, in the order they were provided
+   * @see BtVectors#dot(BtInt8Vector, BtInt8Vector)
+   */
+  public BtInt8Vector[] embedInt8(String ... sequences) {
+    var out = new BtInt8Vector[sequences.length];
+    readPooledRows(sequences, (i, row) -> out[i] = BtInt8Vector.of(row));
+    return out;
+  }
+
+  /** Runs sequences through the model, reading the pooled rows one at a time into a reused array. */
+  private void readPooledRows(String[] sequences, RowOutput consumer) {
+    runBatches(encode(sequences), new String[] {model.pooledOutput}, (batch, output) -> {
+      var tensor = (TFloat32) output.get(0);
+      int size = floatsPerSequence(tensor);
+      FloatDataBuffer src = tensor.asRawTensor().data().asFloats();
+      var row = new float[size];
+      for (int i = 0; i < batch.length; i++) {
+        src.slice((long) i * size, size).read(row);
+        consumer.accept(batch[i], row);
       }
+    });
+  }
+
+  /**
+   * Gets embeddings for multiple sequences, reduced with a pooling strategy.
+   *
+   * @param pooling how to reduce each sequence to a single vector
+   * @param sequences the sequences to embed
+   * @return the embeddings for the sequences, in the order they were provided
+   * @see #embedSequences(BtPooling[], String...)
+   */
+  public float[][] embedSequences(BtPooling pooling, String ... sequences) {
+    return embedSequences(new BtPooling[] {pooling}, sequences);
+  }
+
+  /**
+   * Gets embeddings for multiple sequences, reduced with one or more pooling strategies whose vectors are concatenated in the
+   * order given. All model outputs needed are fetched in a single run, and masked reductions read the token embeddings in place,
+   * without copying them to the Java heap. The session's cache is not used.
+   *
+   * @param pooling how to reduce each sequence, e.g. {@code {CLS, MEAN}} for the pooled output followed by the mean token embedding
+   * @param sequences the sequences to embed
+   * @return the embeddings for the sequences, in the order they were provided
+   */
+  public float[][] embedSequences(BtPooling[] pooling, String ... sequences) {
+    return embedPooled(pooling, encode(sequences));
+  }
+
+  private float[][] embedPooled(BtPooling[] pooling, BtEncoding ids) {
+    if (pooling.length == 0) {
+      throw new IllegalArgumentException("At least one pooling strategy is required");
+    }
+    var firstOf = options.deduplicate ? ids.firstOccurrences() : null;
+    if (firstOf != null) {
+      return embedDistinct(firstOf, distinct -> embedPooled(pooling, ids.subset(distinct)));
+    }
+    boolean cls = false, tokens = false;
+    for (var p : pooling) {
+      cls |= p == BtPooling.CLS;
+      tokens |= p != BtPooling.CLS;
+    }
+    var outputs = new String[(cls ? 1 : 0) + (tokens ? 1 : 0)];
+    if (cls) {
+      outputs[0] = model.pooledOutput;
     }
+    if (tokens) {
+      outputs[outputs.length - 1] = model.sequenceOutput;
+    }
+    var out = new float[ids.size()][];
+    boolean fetchCls = cls;
+    runBatches(ids, outputs, (batch, result) -> {
+      FloatDataBuffer pooled = null, sequence = null;
+      int pooledSize = 0, rows = 0, tokenSize = 0;
+      if (fetchCls) {
+        var tensor = (TFloat32) result.get(0);
+        pooled = tensor.asRawTensor().data().asFloats();
+        pooledSize = (int) tensor.shape().get(1);
+      }
+      if (outputs.length > (fetchCls ? 1 : 0)) {
+        var tensor = (TFloat32) result.get(outputs.length - 1);
+        sequence = tensor.asRawTensor().data().asFloats();
+        rows = (int) tensor.shape().get(1);
+        tokenSize = (int) tensor.shape().get(2);
+      }
+      var row = new float[tokenSize];
+      for (int i = 0; i < batch.length; i++) {
+        int size = 0;
+        for (var p : pooling) {
+          size += p == BtPooling.CLS ? pooledSize : tokenSize;
+        }
+        var vector = new float[size];
+        int offset = 0;
+        for (var p : pooling) {
+          if (p == BtPooling.CLS) {
+            pooled.slice((long) i * pooledSize, pooledSize).read(vector, offset, pooledSize);
+            offset += pooledSize;
+          } else {
+            p.reduce(sequence, i, rows, 0, ids.length(batch[i]) + 2, row, vector, offset);
+            offset += tokenSize;
+          }
+        }
+        out[batch[i]] = vector;
+      }
+    });
+    return out;
+  }
+
+  /**
+   * Gets one embedding per document for documents longer than the model's maximum sequence length. Instead of truncating, each
+   * document is encoded in full and cut into overlapping windows. The windows of all documents are embedded together, in as
+   * many batches as the padding options call for, and each document's window vectors are then combined into one.
+   *
+   * @param windowing window size, stride, pooling and combination options
+   * @param documents the documents to embed
+   * @return the embeddings for the documents, in the order they were provided
+   * @throws IllegalArgumentException if the stride is longer than a window, which would leave tokens between windows out
+   */
+  public float[][] embedDocuments(BtWindowOptions windowing, String ... documents) {
+    int size = windowing.windowTokens > 0
+        ? Math.min(windowing.windowTokens, model.maxSequenceLength - 2)
+        : model.maxSequenceLength - 2;
+    int stride = windowing.stride > 0 ? windowing.stride : Math.max(1, size / 2);
+    if (stride > size) {
+      throw new IllegalArgumentException("Window stride " + stride + " is longer than the window size " + size);
+    }
+    var windows = new ArrayList<int[]>();
+    var firstWindow = new int[documents.length + 1];
+    for (int d = 0; d < documents.length; d++) {
+      firstWindow[d] = windows.size();
+      var ids = tokenizer.encode(documents[d]);
+      for (int start = 0; ; start += stride) {
+        int end = Math.min(start + size, ids.length);
+        windows.add(Arrays.copyOfRange(ids, start, end));
+        if (end == ids.length) {
+          break;
+        }
+      }
+    }
+    firstWindow[documents.length] = windows.size();
+    var windowIds = windows.toArray(new int[0][]);
+    var vectors = embedPooled(windowing.pooling, BtEncoding.of(windowIds));
+    var out = new float[documents.length][];
+    for (int d = 0; d < documents.length; d++) {
+      var vector = new float[vectors[firstWindow[d]].length];
+      float weights = 0;
+      for (int w = firstWindow[d]; w < firstWindow[d + 1]; w++) {
+        float weight = windowing.combine == BtWindowOptions.Combine.LENGTH_WEIGHTED ? windowIds[w].length + 2 : 1;
+        for (int i = 0; i < vector.length; i++) {
+          if (windowing.combine == BtWindowOptions.Combine.MAX) {
+            vector[i] = w == firstWindow[d] ? vectors[w][i] : Math.max(vector[i], vectors[w][i]);
+          } else {
+            vector[i] += weight * vectors[w][i];
+          }
+        }
+        weights += weight;
+      }
+      if (windowing.combine != BtWindowOptions.Combine.MAX) {
+        for (int i = 0; i < vector.length; i++) {
+          vector[i] /= weights;
+        }
+      }
+      out[d] = vector;
+    }
+    return out;
   }
 
   public float[] embedSequence(String sequence) {
@@ -130,69 +922,423 @@ public class BtSession implements AutoCloseable {
    * @return the token embeddings for the sequences, in the order they were provided
    */
   public float[][][] embedTokens(String ... sequences) {
-    try (var inputs = getInputs(sequences)) {
-      var output = bundle.session().runner()
-          .feed(model.inputIds, inputs.inputIds)
-          .feed(model.inputMask, inputs.inputMask)
-          .feed(model.segmentIds, inputs.segmentIds)
-          .fetch(model.sequenceOutput)
-          .run();
-      try (var embedding = output.get(0)) {
-        return StdArrays.array3dCopyOf((TFloat32) embedding);
+    var out = new float[1][][][];
+    runTokens(encode(sequences), output -> out[0] = StdArrays.array3dCopyOf(output));
+    return out[0];
+  }
+
+  /**
+   * Gets BERT embeddings for each of the tokens in multiple sequences, copying them straight from the output tensor into a
+   * caller-supplied buffer. Each sequence takes {@code maxSequenceLength} token rows, written back to back in input order, starting
+   * at the buffer's position, which is then advanced past them.
+   *
+   * @param out the buffer to write into
+   * @param sequences the sequences to embed
+   * @throws BufferOverflowException if the buffer doesn't have room for all embeddings
+   */
+  public void embedTokens(FloatBuffer out, String ... sequences) {
+    var ids = encode(sequences);
+    var dst = out.slice();
+    runTokens(ids, output -> copyRows(output, allOf(ids), sequences.length, dst));
+    out.position(out.position() + dst.position());
+  }
+
+  /**
+   * Gets BERT embeddings for each of the tokens in multiple sequences as float32 values, copying them straight from the output tensor
+   * into a caller-supplied buffer (typically a direct one), using the buffer's byte order. Each sequence takes
+   * {@code maxSequenceLength} token rows, written back to back in input order, starting at the buffer's position, which is then
+   * advanced past them.
+   *
+   * @param out the buffer to write into
+   * @param sequences the sequences to embed
+   * @throws BufferOverflowException if the buffer doesn't have room for all embeddings
+   */
+  public void embedTokens(ByteBuffer out, String ... sequences) {
+    var dst = out.slice().order(out.order()).asFloatBuffer();
+    embedTokens(dst, sequences);
+    out.position(out.position() + dst.position() * Float.BYTES);
+  }
+
+  /**
+   * Gets BERT embeddings for each of the tokens in multiple sequences, copying them straight from the output tensor into a flat array.
+   * Each sequence takes {@code maxSequenceLength} token rows.
+   *
+   * @param out the array to write into
+   * @param offset index in {@code out} where the first token row of the first sequence starts
+   * @param stride distance in {@code out} between the starts of consecutive token rows
+   * @param sequences the sequences to embed
+   */
+  public void embedTokens(float[] out, int offset, int stride, String ... sequences) {
+    var ids = encode(sequences);
+    runTokens(ids, output -> copyRows(output, allOf(ids), out, offset, stride));
+  }
+
+  /**
+   * Gets BERT embeddings for each of the tokens in multiple sequences as a view over the output tensor, without copying it.
+   *
+   * @param sequences the sequences to embed
+   * @return a view of the token embeddings, in the order they were provided. It must be closed by the caller.
+   */
+  public BtTensorView viewTokens(String ... sequences) {
+    var ids = encode(sequences);
+    var batch = allOf(ids);
+    long start = now();
+    try (var inputs = getInputs(ids, batch, model.maxSequenceLength)) {
+      long filled = now();
+      return viewOf(ids, batch, inputs, run(inputs, model.sequenceOutput), start, filled);
+    }
+  }
+
+  /**
+   * Gets BERT embeddings for the tokens of multiple sequences, leaving out padding and the start and separator tokens. Only the
+   * rows under each sequence's input mask are copied from the output tensor, into a single flat array. Since the rows of real
+   * tokens don't depend on how much padding follows them, sequences run in as many batches as the padding options call for.
+   *
+   * @param sequences the sequences to embed
+   * @return one row per sub-token of each sequence, in the order they were provided
+   */
+  public BtRaggedTokens embedTokensRagged(String ... sequences) {
+    var ids = encode(sequences);
+    var out = new BtRaggedTokens[1];
+    runBatches(ids, new String[] {model.sequenceOutput}, (batch, result) -> {
+      var tensor = (TFloat32) result.get(0);
+      int rows = (int) tensor.shape().get(1), size = (int) tensor.shape().get(2);
+      if (out[0] == null) {
+        out[0] = new BtRaggedTokens(new float[Math.multiplyExact(ids.totalLength(), size)], ids.offsets, size, null);
+      }
+      FloatDataBuffer src = tensor.asRawTensor().data().asFloats();
+      for (int i = 0; i < batch.length; i++) {
+        int length = ids.length(batch[i]);
+        if (length > 0) {
+          src.slice(((long) i * rows + 1) * size, (long) length * size).read(out[0].values, ids.offset(batch[i]) * size, length * size);
+        }
       }
+    });
+    return out[0] != null ? out[0] : new BtRaggedTokens(new float[0], ids.offsets, 0, null);
+  }
+
+  /**
+   * Gets one BERT embedding per {@link BtBasic} word of multiple sequences, by reducing the embeddings of the sub-tokens each word
+   * was split into. Words cut short by truncation keep the sub-tokens that fit, and words past the cut are left out.
+   *
+   * @param pooling how to reduce a word's sub-token embeddings: their element-wise {@link BtPooling#MEAN} or {@link BtPooling#MAX},
+   *                or with {@link BtPooling#CLS}, the embedding of the word's first sub-token
+   * @param sequences the sequences to embed
+   * @return one row per word of each sequence, in the order they were provided, along with the words
+   */
+  public BtRaggedTokens embedWords(BtPooling pooling, String ... sequences) {
+    long start = now();
+    var words = new String[sequences.length][];
+    var wordStarts = new int[sequences.length][];
+    var ids = new int[sequences.length][];
+    for (int s = 0; s < sequences.length; s++) {
+      var sequenceWords = new ArrayList<String>();
+      var encoded = tokenizer.encodeWords(sequences[s], sequenceWords);
+      ids[s] = encoded.ids;
+      wordStarts[s] = encoded.offsets;
+      words[s] = sequenceWords.toArray(new String[0]);
     }
+    var encoding = BtEncoding.of(truncate(ids, start));
+    var offsets = new int[sequences.length + 1];
+    for (int s = 0; s < sequences.length; s++) {
+      int kept = 0;
+      while (kept < words[s].length && wordStarts[s][kept] < encoding.length(s)) {
+        kept++;
+      }
+      words[s] = Arrays.copyOf(words[s], kept);
+      offsets[s + 1] = offsets[s] + kept;
+    }
+    var out = new BtRaggedTokens[1];
+    runBatches(encoding, new String[] {model.sequenceOutput}, (batch, result) -> {
+      var tensor = (TFloat32) result.get(0);
+      int rows = (int) tensor.shape().get(1), size = (int) tensor.shape().get(2);
+      if (out[0] == null) {
+        out[0] = new BtRaggedTokens(new float[Math.multiplyExact(offsets[sequences.length], size)], offsets, size, words);
+      }
+      FloatDataBuffer src = tensor.asRawTensor().data().asFloats();
+      var row = new float[size];
+      for (int i = 0; i < batch.length; i++) {
+        int s = batch[i];
+        for (int w = 0; w < words[s].length; w++) {
+          int first = 1 + wordStarts[s][w], end = 1 + Math.min(wordStarts[s][w + 1], encoding.length(s));
+          int at = (offsets[s] + w) * size;
+          if (pooling == BtPooling.CLS) {
+            src.slice(((long) i * rows + first) * size, size).read(out[0].values, at, size);
+          } else {
+            pooling.reduce(src, i, rows, first, end - first, row, out[0].values, at);
+          }
+        }
+      }
+    });
+    return out[0] != null ? out[0] : new BtRaggedTokens(new float[0], offsets, 0, words);
   }
 
-  private BtInputs getInputs(String[] sequences) {
-    var tokens = tokenizer.tokenize(sequences);
-    var inputIds = IntBuffer.allocate(sequences.length * model.maxSequenceLength);
-    var inputMask = IntBuffer.allocate(sequences.length * model.maxSequenceLength);
-    var segmentIds = IntBuffer.allocate(sequences.length * model.maxSequenceLength);
+  private Result run(BtInputs inputs, String ... outputs) {
+    var runner = session.runner()
+        .feed(model.inputIds, inputs.inputIds)
+        .feed(model.inputMask, inputs.inputMask)
+        .feed(model.segmentIds, inputs.segmentIds);
+    for (var output : outputs) {
+      runner.fetch(output);
+    }
+    return runner.run();
+  }
 
-    /*
-     * In BERT:
-     * inputIds are the indexes in the vocabulary for each token in the sequence
-     * inputMask is a binary mask that shows which inputIds have valid data in them
-     * segmentIds are meant to distinguish paired sequences during training tasks. Here they're always 0 since we're only doing inference.
-     */
-    int instance = 1;
+  /**
+   * Runs the sequences through the model in as many batches as the padding options call for, handing each batch's output tensor
+   * (along with the input indexes of its rows) to a consumer.
+   */
+  private void runBatches(BtEncoding ids, String[] outputs, BatchOutput consumer) {
+    for (var batch : batchesOf(ids)) {
+      long start = now();
+      try (var inputs = getInputs(ids, batch, paddedLength(ids, batch))) {
+        long filled = now();
+        try (var result = run(inputs, outputs)) {
+          long ran = now();
+          consumer.accept(batch, result);
+          if (metrics != null) {
+            report(ids, batch, inputs, result, start, filled, ran, now());
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Runs the sequences through the model as a single batch padded to the model's maximum length, so token rows keep their positions.
+   */
+  private void runTokens(BtEncoding ids, Consumer<TFloat32> consumer) {
+    var batch = allOf(ids);
+    long start = now();
+    try (var inputs = getInputs(ids, batch, model.maxSequenceLength)) {
+      long filled = now();
+      try (var result = run(inputs, model.sequenceOutput)) {
+        long ran = now();
+        consumer.accept((TFloat32) result.get(0));
+        if (metrics != null) {
+          report(ids, batch, inputs, result, start, filled, ran, now());
+        }
+      }
+    }
+  }
+
+  /** @return the current time for stage timings, or 0 without a metrics listener */
+  private long now() {
+    return metrics != null ? System.nanoTime() : 0;
+  }
+
+  private void report(BtEncoding ids, int[] batch, BtInputs inputs, Result result, long start, long filled, long ran, long done) {
+    report(ids, batch, inputs.sequenceLength, bytesOf(inputs) + bytesOf(result), filled - start, ran - filled, done - ran);
+  }
+
+  private void report(BtEncoding ids, int[] batch, int sequenceLength, long tensorBytes,
+                      long inputsNanos, long runNanos, long copyNanos) {
+    long realTokens = 0;
+    for (int i : batch) {
+      realTokens += ids.length(i) + 2;
+    }
+    metrics.onBatch(new BtBatchStats(batch.length, sequenceLength, realTokens, tensorBytes, inputsNanos, runNanos, copyNanos));
+  }
+
+  private static long bytesOf(BtInputs inputs) {
+    return inputs.inputIds.numBytes() + inputs.inputMask.numBytes() + inputs.segmentIds.numBytes();
+  }
+
+  private static long bytesOf(Result result) {
+    long bytes = 0;
+    for (int i = 0; i < result.size(); i++) {
+      bytes += result.get(i).numBytes();
+    }
+    return bytes;
+  }
+
+  /** Number of floats an output tensor holds for each sequence. */
+  private static int floatsPerSequence(TFloat32 output) {
+    var shape = output.shape();
+    long size = 1;
+    for (int d = 1; d < shape.numDimensions(); d++) {
+      size *= shape.get(d);
+    }
+    return (int) size;
+  }
+
+  private static void copyRows(TFloat32 output, int[] batch, float[][] out) {
+    var rows = StdArrays.array2dCopyOf(output);
+    for (int i = 0; i < batch.length; i++) {
+      out[batch[i]] = rows[i];
+    }
+  }
+
+  private static void copyRows(TFloat32 output, int[] batch, int sequences, FloatBuffer dst) {
+    int size = floatsPerSequence(output);
+    if ((long) sequences * size > dst.capacity()) {
+      throw new BufferOverflowException();
+    }
+    FloatDataBuffer src = output.asRawTensor().data().asFloats();
+    if (dst.hasArray()) {
+      for (int i = 0; i < batch.length; i++) {
+        src.slice((long) i * size, size).read(dst.array(), dst.arrayOffset() + batch[i] * size, size);
+      }
+    } else if (dst.isDirect()) { // ndarray only honors buffer offsets for direct NIO buffers
+      var to = DataBuffers.of(dst.duplicate().clear());
+      for (int i = 0; i < batch.length; i++) {
+        src.slice((long) i * size, size).copyTo(to.slice((long) batch[i] * size, size), size);
+      }
+    } else {
+      var row = new float[size];
+      var to = dst.duplicate();
+      for (int i = 0; i < batch.length; i++) {
+        src.slice((long) i * size, size).read(row);
+        to.position(batch[i] * size);
+        to.put(row);
+      }
+    }
+    dst.position(sequences * size);
+  }
 
-    for (var token : tokens) {
-      int[] ids = tokenizer.convert(token);
-      inputIds.put(startTokenId);
-      inputMask.put(1);
-      segmentIds.put(0);
-      for (int i = 0; i < ids.length && i < model.maxSequenceLength - 2; i++) {
-        inputIds.put(ids[i]);
-        inputMask.put(1);
-        segmentIds.put(0);
+  private static void copyRows(TFloat32 output, int[] batch, float[] out, int offset, int stride) {
+    var shape = output.shape();
+    int rowSize = (int) shape.get(shape.numDimensions() - 1);
+    int rowsPerSequence = floatsPerSequence(output) / Math.max(1, rowSize);
+    FloatDataBuffer src = output.asRawTensor().data().asFloats();
+    for (int i = 0; i < batch.length; i++) {
+      for (int r = 0; r < rowsPerSequence; r++) {
+        int row = batch[i] * rowsPerSequence + r;
+        src.slice(((long) i * rowsPerSequence + r) * rowSize, rowSize).read(out, offset + row * stride, rowSize);
       }
-      inputIds.put(separatorTokenId);
-      inputMask.put(1);
-      segmentIds.put(0);
+    }
+  }
+
+  /**
+   * Encodes a sequence into inputIds, truncated so that they fit the model along with the start and separator tokens.
+   */
+  int[] encode(String sequence) {
+    long start = now();
+    return truncate(new int[][] {tokenizer.encode(sequence)}, start)[0];
+  }
 
-      while (inputIds.position() < model.maxSequenceLength * instance) {
-        inputIds.put(0);
-        inputMask.put(0);
-        segmentIds.put(0);
+  private BtEncoding encode(String[] sequences) {
+    long start = now();
+    var ids = tokenizer.encodeBatch(sequences);
+    int maxTokens = model.maxSequenceLength - 2;
+    if (metrics != null) {
+      int truncated = 0;
+      for (int i = 0; i < ids.size(); i++) {
+        truncated += ids.length(i) > maxTokens ? 1 : 0;
       }
-      instance++;
+      metrics.onEncode(ids.size(), ids.totalLength(), truncated, System.nanoTime() - start);
     }
+    return ids.truncate(maxTokens);
+  }
 
-    inputIds.rewind();
-    inputMask.rewind();
-    segmentIds.rewind();
+  /**
+   * Truncates encoded sequences in place, so that they fit the model along with the start and separator tokens, and reports them
+   * to the metrics listener, if there is one.
+   *
+   * @param start when encoding started, from {@link #now()}
+   */
+  private int[][] truncate(int[][] ids, long start) {
+    int maxTokens = model.maxSequenceLength - 2, truncated = 0;
+    long tokens = 0;
+    for (int i = 0; i < ids.length; i++) {
+      tokens += ids[i].length;
+      if (ids[i].length > maxTokens) {
+        ids[i] = Arrays.copyOf(ids[i], maxTokens);
+        truncated++;
+      }
+    }
+    if (metrics != null) {
+      metrics.onEncode(ids.length, tokens, truncated, System.nanoTime() - start);
+    }
+    return ids;
+  }
 
-    return new BtInputs(
-        DataBuffers.of(inputIds), DataBuffers.of(inputMask),
-        DataBuffers.of(segmentIds), sequences.length, model.maxSequenceLength
-    );
+  /**
+   * @return the number of tokens a sequence encoded with {@link #encode(String)} takes up in a pooled embedding batch, after
+   *         rounding to {@link BtSessionOptions#padMultiple}. A batch is padded to the largest of these.
+   */
+  int paddedTokens(int[] ids) {
+    if (options.padding == BtPadding.MODEL_MAX) {
+      return model.maxSequenceLength;
+    }
+    int multiple = Math.max(1, options.padMultiple);
+    return Math.min(model.maxSequenceLength, (ids.length + 2 + multiple - 1) / multiple * multiple);
+  }
+
+  private static int[] allOf(BtEncoding ids) {
+    return allOf(ids.size());
+  }
+
+  private static int[] allOf(int size) {
+    var all = new int[size];
+    for (int i = 0; i < all.length; i++) {
+      all[i] = i;
+    }
+    return all;
+  }
+
+  /**
+   * Splits a call into batches of sequence indexes. Without dynamic padding, or when the call is small, that's a single batch
+   * in input order. Otherwise sequences are sorted by length and cut into batches of similar length.
+   */
+  private int[][] batchesOf(BtEncoding ids) {
+    if (options.padding == BtPadding.MODEL_MAX || ids.size() <= options.bucketBatchSize) {
+      return new int[][] { allOf(ids) };
+    }
+    var byLength = new long[ids.size()];
+    for (int i = 0; i < byLength.length; i++) {
+      byLength[i] = ((long) ids.length(i) << 32) | i;
+    }
+    Arrays.sort(byLength);
+    int batchSize = options.bucketBatchSize;
+    var batches = new int[(byLength.length + batchSize - 1) / batchSize][];
+    for (int b = 0; b < batches.length; b++) {
+      int from = b * batchSize;
+      batches[b] = new int[Math.min(batchSize, byLength.length - from)];
+      for (int i = 0; i < batches[b].length; i++) {
+        batches[b][i] = (int) byLength[from + i];
+      }
+    }
+    return batches;
+  }
+
+  int paddedLength(BtEncoding ids, int[] batch) {
+    if (options.padding == BtPadding.MODEL_MAX) {
+      return model.maxSequenceLength;
+    }
+    int longest = 2;
+    for (int i : batch) {
+      longest = Math.max(longest, ids.length(i) + 2);
+    }
+    int multiple = Math.max(1, options.padMultiple);
+    return Math.min(model.maxSequenceLength, (longest + multiple - 1) / multiple * multiple);
+  }
+
+  BtInputs getInputs(BtEncoding ids, int[] batch, int sequenceLength) {
+    /*
+     * In BERT:
+     * inputIds are the indexes in the vocabulary for each token in the sequence
+     * inputMask is a binary mask that shows which inputIds have valid data in them
+     * segmentIds are meant to distinguish paired sequences during training tasks. Here they're always 0 since we're only doing inference.
+     */
+    var inputs = inputPool.acquire(batch.length, sequenceLength);
+    for (int row = 0; row < batch.length; row++) {
+      inputs.put(row, startTokenId, ids.ids, ids.offset(batch[row]), ids.length(batch[row]), separatorTokenId);
+    }
+    return inputs;
   }
 
   @Override
   public void close() {
+    if (bundle == null) {
+      session.close();
+      return;
+    }
+    inputPool.close();
     bundle.close();
-    BtFileIO.delete(modelSource.bundleDir);
+    if (modelSource.deleteOnClose) {
+      BtFileIO.delete(modelSource.bundleDir);
+    }
   }
 
 }
@@ -0,0 +1,127 @@
+package io.vacco.bertastic;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A {@link BtMetricsListener} that keeps running counters, and histograms of batch sizes and stage timings. Everything it keeps is
+ * lock-free, so one instance can be shared by all sessions of a {@link BtSessionPool}, or by several pools.
+ * <p>
+ * It can be published to the platform MBean server with {@link #register(String)}, to be read from JConsole or any JMX exporter.
+ */
+public class BtSessionMetrics implements BtMetricsListener, BtSessionMetricsMBean {
+
+  public static final String DOMAIN = "io.vacco.bertastic";
+
+  public final BtHistogram encodeNanos = new BtHistogram(), inputsNanos = new BtHistogram(),
+      runNanos = new BtHistogram(), copyNanos = new BtHistogram(), batchSizes = new BtHistogram();
+
+  private final LongAdder sequences = new LongAdder(), encodedTokens = new LongAdder(), truncated = new LongAdder(), realTokens = new LongAdder(),
+      paddedTokens = new LongAdder(), tensorBytes = new LongAdder(), duplicates = new LongAdder();
+
+  private ObjectName objectName;
+
+  @Override public void onEncode(int sequences, long tokens, int truncated, long nanos) {
+    this.sequences.add(sequences);
+    this.encodedTokens.add(tokens);
+    this.truncated.add(truncated);
+    encodeNanos.record(nanos);
+  }
+
+  @Override public void onBatch(BtBatchStats batch) {
+    batchSizes.record(batch.sequences);
+    realTokens.add(batch.realTokens);
+    paddedTokens.add(batch.paddedTokens);
+    tensorBytes.add(batch.tensorBytes);
+    inputsNanos.record(batch.inputsNanos);
+    runNanos.record(batch.runNanos);
+    copyNanos.record(batch.copyNanos);
+  }
+
+  @Override public void onDuplicates(int duplicates) {
+    this.duplicates.add(duplicates);
+  }
+
+  /**
+   * Publishes these metrics to the platform MBean server.
+   *
+   * @param name distinguishes these metrics from those of other sessions in the same JVM, e.g. the model's name
+   * @return the name the MBean was registered under, {@code io.vacco.bertastic:type=BtSessionMetrics,name="<name>"}
+   */
+  public synchronized ObjectName register(String name) {
+    try {
+      var on = new ObjectName(DOMAIN + ":type=BtSessionMetrics,name=" + ObjectName.quote(name));
+      ManagementFactory.getPlatformMBeanServer().registerMBean(this, on);
+      objectName = on;
+      return on;
+    } catch (JMException e) {
+      throw new IllegalStateException("Unable to register session metrics as " + name, e);
+    }
+  }
+
+  /** Removes these metrics from the platform MBean server, if they were registered. */
+  public synchronized void unregister() {
+    if (objectName == null) {
+      return;
+    }
+    try {
+      ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+      objectName = null;
+    } catch (JMException e) {
+      throw new IllegalStateException("Unable to unregister session metrics " + objectName, e);
+    }
+  }
+
+  private static long micros(long nanos) {
+    return TimeUnit.NANOSECONDS.toMicros(nanos);
+  }
+
+  @Override public long getSequences() { return sequences.sum(); }
+  @Override public long getEncodedTokens() { return encodedTokens.sum(); }
+  @Override public long getTruncatedSequences() { return truncated.sum(); }
+  @Override public long getBatches() { return batchSizes.count(); }
+  @Override public long getRealTokens() { return realTokens.sum(); }
+  @Override public long getPaddedTokens() { return paddedTokens.sum(); }
+  @Override public long getTensorBytes() { return tensorBytes.sum(); }
+  @Override public long getDuplicateSequences() { return duplicates.sum(); }
+
+  /**
+   * @return the fraction of input positions that were padding, or 0 if no batches ran
+   */
+  @Override public double getPaddingRatio() {
+    long padded = getPaddedTokens();
+    return padded == 0 ? 0 : 1 - (double) getRealTokens() / padded;
+  }
+
+  @Override public double getMeanBatchSize() { return batchSizes.mean(); }
+  @Override public long getBatchSizeP99() { return batchSizes.percentile(0.99); }
+
+  @Override public double getEncodeMeanMicros() { return encodeNanos.mean() / 1000; }
+  @Override public long getEncodeP50Micros() { return micros(encodeNanos.percentile(0.5)); }
+  @Override public long getEncodeP99Micros() { return micros(encodeNanos.percentile(0.99)); }
+
+  @Override public double getInputsMeanMicros() { return inputsNanos.mean() / 1000; }
+  @Override public long getInputsP50Micros() { return micros(inputsNanos.percentile(0.5)); }
+  @Override public long getInputsP99Micros() { return micros(inputsNanos.percentile(0.99)); }
+
+  @Override public double getRunMeanMicros() { return runNanos.mean() / 1000; }
+  @Override public long getRunP50Micros() { return micros(runNanos.percentile(0.5)); }
+  @Override public long getRunP99Micros() { return micros(runNanos.percentile(0.99)); }
+
+  @Override public double getCopyMeanMicros() { return copyNanos.mean() / 1000; }
+  @Override public long getCopyP50Micros() { return micros(copyNanos.percentile(0.5)); }
+  @Override public long getCopyP99Micros() { return micros(copyNanos.percentile(0.99)); }
+
+  @Override public void reset() {
+    for (var h : new BtHistogram[] {encodeNanos, inputsNanos, runNanos, copyNanos, batchSizes}) {
+      h.reset();
+    }
+    for (var a : new LongAdder[] {sequences, encodedTokens, truncated, realTokens, paddedTokens, tensorBytes, duplicates}) {
+      a.reset();
+    }
+  }
+
+}
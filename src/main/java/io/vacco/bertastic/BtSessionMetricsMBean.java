@@ -0,0 +1,40 @@
+package io.vacco.bertastic;
+
+/**
+ * The JMX view of {@link BtSessionMetrics}. Times are in microseconds, and percentiles are upper bounds within 25% of the actual
+ * values.
+ */
+public interface BtSessionMetricsMBean {
+
+  long getSequences();
+  long getEncodedTokens();
+  long getTruncatedSequences();
+  long getBatches();
+  long getRealTokens();
+  long getPaddedTokens();
+  double getPaddingRatio();
+  long getTensorBytes();
+  long getDuplicateSequences();
+
+  double getMeanBatchSize();
+  long getBatchSizeP99();
+
+  double getEncodeMeanMicros();
+  long getEncodeP50Micros();
+  long getEncodeP99Micros();
+
+  double getInputsMeanMicros();
+  long getInputsP50Micros();
+  long getInputsP99Micros();
+
+  double getRunMeanMicros();
+  long getRunP50Micros();
+  long getRunP99Micros();
+
+  double getCopyMeanMicros();
+  long getCopyP50Micros();
+  long getCopyP99Micros();
+
+  void reset();
+
+}
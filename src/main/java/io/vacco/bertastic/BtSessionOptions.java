@@ -0,0 +1,86 @@
+package io.vacco.bertastic;
+
+public class BtSessionOptions {
+
+  /**
+   * How input sequences are padded. With {@link BtPadding#BATCH_LONGEST}, pooled embeddings are computed over tensors sized to the
+   * longest sequence in each batch. Token embeddings always keep the model's maximum sequence length.
+   */
+  public BtPadding padding = BtPadding.MODEL_MAX;
+
+  /**
+   * With {@link BtPadding#BATCH_LONGEST}, calls with more sequences than this are sorted by length and run as several batches of
+   * at most this many sequences each, so short sequences are not padded to the length of long ones.
+   */
+  public int bucketBatchSize = 64;
+
+  /**
+   * With {@link BtPadding#BATCH_LONGEST}, padded lengths are rounded up to a multiple of this, which bounds the number of distinct
+   * tensor shapes the model sees.
+   */
+  public int padMultiple = 8;
+
+  /**
+   * Maximum number of idle native input tensor sets kept for reuse across calls, keyed by batch shape. 0 disables reuse.
+   */
+  public int inputPoolSize = 16;
+
+  /**
+   * An optional cache of pooled embeddings, used by the {@code embedSequences} overloads that return {@code float[][]}.
+   * Only sequences missing from the cache are sent to the model. Keys don't identify the model, so a cache must not be shared
+   * between sessions over different models, although sessions over the same one, e.g. in a {@link BtSessionPool}, can share it.
+   */
+  public BtCache cache;
+
+  /** Number of threads TensorFlow uses to run a single operation, such as a matrix multiply. 0 lets TensorFlow choose. */
+  public int intraOpThreads = 0;
+
+  /** Number of threads TensorFlow uses to run independent operations concurrently. 0 lets TensorFlow choose. */
+  public int interOpThreads = 0;
+
+  /**
+   * Whether each TensorFlow session gets its own thread pools, instead of sharing the process-wide ones. Sessions in a
+   * {@link BtSessionPool} always get their own.
+   */
+  public boolean perSessionThreads = false;
+
+  /** Whether TensorFlow pins its thread pools to NUMA nodes, on hosts that have more than one. */
+  public boolean numaAffinity = false;
+
+  /**
+   * Whether TensorFlow compiles clusters of graph operations with XLA (auto-clustering at {@code ON_1}). On CPUs, TensorFlow also
+   * needs the environment variable {@code TF_XLA_FLAGS=--tf_xla_cpu_global_jit} for this to apply.
+   */
+  public boolean xlaJit = false;
+
+  /** Whether TensorFlow's graph optimizer (Grappler) rewrites the model graph when a session starts, e.g. to fold constants. */
+  public boolean graphOptimizations = true;
+
+  /**
+   * Whether Grappler converts eligible operations to bfloat16, on CPUs with oneDNN support for it. Faster on such CPUs, at the
+   * cost of some precision in the embeddings.
+   */
+  public boolean bfloat16 = false;
+
+  /**
+   * Input shapes to run a dummy batch through when a session is loaded, as {@code {batchSize, sequenceLength}} pairs, so that
+   * TensorFlow has set up kernels and memory for them before the first call. Lengths are padded as calls would pad them, so with
+   * {@link BtPadding#MODEL_MAX} only the batch size matters. The time each shape takes is logged.
+   */
+  public int[][] warmupShapes = {};
+
+  /**
+   * Whether {@code embedSequences}, in all its forms, and {@link BtSession#embedDocuments} run each distinct input (or window)
+   * only once. Inputs count as the same if their text is equal, or if they encode to the same inputIds, e.g. after lower-casing
+   * or accent stripping. Duplicates get copies of the first one's embedding. Calls that convert rows as they read them from the
+   * output tensor, such as {@link BtSession#embedNormalized}, {@link BtSession#embedHalf} and {@link BtSession#embedInt8}, run
+   * every input. Off by default, since it hashes every input of every call, which only pays off when inputs repeat.
+   */
+  public boolean deduplicate = false;
+
+  /**
+   * An optional listener for stage timings and batch sizes, such as a {@link BtSessionMetrics}. Without one, nothing is measured.
+   */
+  public BtMetricsListener metrics;
+
+}
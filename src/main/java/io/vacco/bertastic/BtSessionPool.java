@@ -0,0 +1,179 @@
+package io.vacco.bertastic;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.function.Function;
+
+/**
+ * Several TensorFlow sessions over a single loaded model, each with its own thread pools, which spread concurrent calls between
+ * them. On hosts with many cores, a few small sessions usually get more work done than one large one, since a single session
+ * splits every operation across all cores and has its threads contend when many callers use it at once.
+ * <p>
+ * Each call borrows an idle session for its duration, waiting if all of them are busy. Closing the pool waits for calls in
+ * progress, and calls made after that are rejected.
+ */
+public class BtSessionPool implements AutoCloseable {
+
+  private final BtSession[] sessions;
+  private final BlockingQueue<BtSession> idle;
+  private final AtomicInteger waiting = new AtomicInteger();
+  private final LongAdder calls = new LongAdder(), busyNanos = new LongAdder();
+  private final long openedAt = System.nanoTime();
+  private final ReentrantReadWriteLock borrows = new ReentrantReadWriteLock(); // Calls hold it shared, close() exclusively
+  private boolean closed;
+
+  private BtSessionPool(BtSession[] sessions) {
+    this.sessions = sessions;
+    this.idle = new ArrayBlockingQueue<>(sessions.length);
+    for (var s : sessions) {
+      idle.add(s);
+    }
+  }
+
+  /**
+   * Loads a model once and opens several sessions over it.
+   *
+   * @param ms model file sources.
+   * @param ji JSON input function (can be used with Gson or Jackson).
+   * @param options session options. When {@link BtSessionOptions#intraOpThreads} is 0, the host's processors are divided evenly
+   *                among sessions.
+   * @param size number of sessions
+   * @return a ready-to-use session pool
+   */
+  public static BtSessionPool load(BtModelSource ms, BtJsonInput ji, BtSessionOptions options, int size) {
+    if (size < 1) {
+      throw new IllegalArgumentException("Session pool size must be positive: " + size);
+    }
+    int intraOpThreads = options.intraOpThreads > 0
+        ? options.intraOpThreads
+        : Math.max(1, Runtime.getRuntime().availableProcessors() / size);
+    var config = BtSession.configOf(options, intraOpThreads, true);
+    var sessions = new BtSession[size];
+    sessions[0] = BtSession.load(ms, ji, options, config);
+    try {
+      for (int i = 1; i < size; i++) {
+        sessions[i] = sessions[0].fork(config);
+      }
+    } catch (RuntimeException e) {
+      for (int i = size - 1; i >= 0; i--) {
+        if (sessions[i] != null) {
+          sessions[i].close();
+        }
+      }
+      throw e;
+    }
+    return new BtSessionPool(sessions);
+  }
+
+  /**
+   * Runs work with an idle session, waiting for one if all are busy.
+   *
+   * @param work what to do with the session. The session must not be used after this returns.
+   * @param <T> the result type
+   * @return the result of the work
+   * @throws IllegalStateException if the pool was closed
+   */
+  public <T> T apply(Function<BtSession, T> work) {
+    borrows.readLock().lock();
+    try {
+      if (closed) {
+        throw new IllegalStateException("Session pool is closed");
+      }
+      BtSession session;
+      waiting.incrementAndGet();
+      try {
+        session = idle.take();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IllegalStateException("Interrupted while waiting for a session", e);
+      } finally {
+        waiting.decrementAndGet();
+      }
+      long start = System.nanoTime();
+      try {
+        return work.apply(session);
+      } finally {
+        busyNanos.add(System.nanoTime() - start);
+        calls.increment();
+        idle.add(session);
+      }
+    } finally {
+      borrows.readLock().unlock();
+    }
+  }
+
+  /** @see BtSession#embedSequences(String...) */
+  public float[][] embedSequences(String ... sequences) {
+    return apply(s -> s.embedSequences(sequences));
+  }
+
+  /** @see BtSession#embedSequence(String) */
+  public float[] embedSequence(String sequence) {
+    return apply(s -> s.embedSequence(sequence));
+  }
+
+  /** @see BtSession#embedTokens(String...) */
+  public float[][][] embedTokens(String ... sequences) {
+    return apply(s -> s.embedTokens(sequences));
+  }
+
+  /**
+   * @return the number of sessions in this pool
+   */
+  public int size() {
+    return sessions.length;
+  }
+
+  /**
+   * @return the number of callers waiting for a session
+   */
+  public int queueDepth() {
+    return waiting.get();
+  }
+
+  /**
+   * @return the number of sessions currently running a call
+   */
+  public int busy() {
+    return sessions.length - idle.size();
+  }
+
+  /**
+   * @return the number of calls completed
+   */
+  public long calls() {
+    return calls.sum();
+  }
+
+  /**
+   * @return the fraction of session time spent running calls since this pool was opened, from 0 to 1
+   */
+  public double utilization() {
+    long elapsed = System.nanoTime() - openedAt;
+    return elapsed <= 0 ? 0 : Math.min(1, (double) busyNanos.sum() / ((double) elapsed * sessions.length));
+  }
+
+  /**
+   * Waits for calls in progress to return their sessions, then closes all sessions. Closing a closed pool does nothing. It must
+   * not be called from within {@link #apply(Function)}, which would wait for itself.
+   */
+  @Override
+  public void close() {
+    borrows.writeLock().lock();
+    try {
+      if (closed) {
+        return;
+      }
+      closed = true;
+      for (int i = sessions.length - 1; i >= 0; i--) {
+        sessions[i].close();
+      }
+    } finally {
+      borrows.writeLock().unlock();
+    }
+  }
+
+}
@@ -0,0 +1,98 @@
+package io.vacco.bertastic;
+
+import org.tensorflow.ndarray.buffer.FloatDataBuffer;
+import org.tensorflow.types.TFloat32;
+
+/**
+ * A read-only view over an output tensor of a {@link BtSession}, backed directly by the tensor's native memory.
+ * <p>
+ * The view holds on to the tensor until it's closed, so reading from it doesn't copy the whole output to the Java heap.
+ * Values are laid out in row-major order: {@code [sequence][dimension]} for pooled embeddings, and
+ * {@code [sequence][token][dimension]} for token embeddings.
+ */
+public class BtTensorView implements AutoCloseable {
+
+  private final TFloat32 tensor;
+  private final FloatDataBuffer data;
+  private final int sequences, tokens, dimensions;
+  private boolean closed;
+
+  BtTensorView(TFloat32 tensor) {
+    var shape = tensor.shape();
+    this.tensor = tensor;
+    this.data = tensor.asRawTensor().data().asFloats();
+    this.sequences = (int) shape.get(0);
+    this.tokens = shape.numDimensions() == 3 ? (int) shape.get(1) : 1;
+    this.dimensions = (int) shape.get(shape.numDimensions() - 1);
+  }
+
+  /**
+   * @return the number of sequences in the view
+   */
+  public int sequences() {
+    return sequences;
+  }
+
+  /**
+   * @return the number of token rows per sequence, or 1 for pooled embeddings
+   */
+  public int tokens() {
+    return tokens;
+  }
+
+  /**
+   * @return the size of each embedding vector
+   */
+  public int dimensions() {
+    return dimensions;
+  }
+
+  /**
+   * @return a value of a pooled embedding
+   * @throws IllegalStateException if the view was closed
+   */
+  public float get(int sequence, int dimension) {
+    return get(sequence, 0, dimension);
+  }
+
+  /**
+   * @return a value of a token embedding
+   * @throws IllegalStateException if the view was closed
+   */
+  public float get(int sequence, int token, int dimension) {
+    checkOpen();
+    return data.getFloat(((long) sequence * tokens + token) * dimensions + dimension);
+  }
+
+  /**
+   * Copies a single embedding vector into an array.
+   *
+   * @param sequence index of the sequence
+   * @param token index of the token, or 0 for pooled embeddings
+   * @param dst the array to copy into
+   * @param offset index in {@code dst} of the first value to write
+   * @throws IllegalStateException if the view was closed
+   */
+  public void read(int sequence, int token, float[] dst, int offset) {
+    checkOpen();
+    data.slice(((long) sequence * tokens + token) * dimensions, dimensions).read(dst, offset, dimensions);
+  }
+
+  private void checkOpen() {
+    if (closed) {
+      throw new IllegalStateException("Tensor view is closed");
+    }
+  }
+
+  /**
+   * Releases the underlying tensor. The view can't be used afterwards. Closing a closed view does nothing.
+   */
+  @Override
+  public void close() {
+    if (!closed) {
+      closed = true;
+      tensor.close();
+    }
+  }
+
+}
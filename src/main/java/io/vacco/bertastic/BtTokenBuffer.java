@@ -0,0 +1,104 @@
+package io.vacco.bertastic;
+
+import java.util.Arrays;
+
+/**
+ * A reusable buffer of tokens produced by the {@link BtBasic}.
+ * <p>
+ * Tokens are stored back to back in a single character array, and each token is described only by the index where it ends,
+ * so scanning a sequence into a buffer that has already grown to size does not allocate. Tokens may be empty.
+ */
+public class BtTokenBuffer {
+
+  private char[] chars = new char[256];
+  private int[] ends = new int[64];
+  private int length, count;
+
+  /**
+   * Removes all tokens from this buffer, keeping its storage.
+   */
+  public void clear() {
+    length = 0;
+    count = 0;
+  }
+
+  void append(int codePoint) {
+    if (length + 2 > chars.length) {
+      chars = Arrays.copyOf(chars, chars.length * 2);
+    }
+    length += Character.toChars(codePoint, chars, length);
+  }
+
+  void append(char c) {
+    if (length == chars.length) {
+      chars = Arrays.copyOf(chars, chars.length * 2);
+    }
+    chars[length++] = c;
+  }
+
+  void addToken(int end) {
+    if (count == ends.length) {
+      ends = Arrays.copyOf(ends, ends.length * 2);
+    }
+    ends[count++] = end;
+  }
+
+  void setLength(int length) {
+    this.length = length;
+  }
+
+  int length() {
+    return length;
+  }
+
+  /**
+   * @return the characters of all tokens in this buffer. Only valid until the buffer is modified.
+   */
+  public char[] chars() {
+    return chars;
+  }
+
+  /**
+   * @return the number of tokens in this buffer
+   */
+  public int size() {
+    return count;
+  }
+
+  /**
+   * @param token index of the token
+   * @return index in {@link #chars()} of the first character of the token
+   */
+  public int start(int token) {
+    return token == 0 ? 0 : ends[token - 1];
+  }
+
+  /**
+   * @param token index of the token
+   * @return index in {@link #chars()} past the last character of the token
+   */
+  public int end(int token) {
+    return ends[token];
+  }
+
+  /**
+   * @param token index of the token
+   * @return the token as a string
+   */
+  public String get(int token) {
+    int start = start(token);
+    return new String(chars, start, ends[token] - start);
+  }
+
+  /**
+   * @return all tokens in this buffer as strings
+   */
+  public String[] toArray() {
+    var out = new String[count];
+    for (int i = 0; i < count; i++) {
+      out[i] = get(i);
+    }
+    return out;
+  }
+
+}
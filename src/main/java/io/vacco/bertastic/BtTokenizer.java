@@ -40,6 +40,16 @@ public abstract class BtTokenizer {
     return tokenize(BtIterables.toArray(sequences, String.class));
   }
 
+  /**
+   * Tokenizes multiple sequences lazily, as the returned stream is consumed
+   *
+   * @param sequences the sequences to tokenize
+   * @return the tokens in the sequences, in the order the {@link java.util.stream.Stream} provided them
+   */
+  public Stream<String[]> tokenize(final Stream<String> sequences) {
+    return sequences.map(sequence -> tokenize(sequence));
+  }
+
   /**
    * Tokenizes a single sequence
    *
@@ -0,0 +1,332 @@
+package io.vacco.bertastic;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * A compact, read-only prefix trie over the sub-tokens of a BERT vocabulary.
+ * <p>
+ * Nodes are laid out breadth-first in flat arrays, with the outgoing edges of each node sorted by character, so a longest-match
+ * lookup is a single forward scan over the input characters which does not allocate. Word-initial sub-tokens are matched from the
+ * root, and continuation sub-tokens (the ones prefixed with {@code ##} in the vocabulary) are matched from the node reached by
+ * {@code ##}, so both kinds of lookup share one structure.
+ * <p>
+ * A compiled trie can be saved as a snapshot with {@link #write(File)}, and loaded back with {@link #map(File)}. Loading maps the
+ * snapshot into memory and looks tokens up directly in the mapped bytes, so it takes no parsing and almost no heap, and processes
+ * loading the same snapshot share its pages. A trie compiled in-process keeps its arrays on the heap, and matches over them
+ * without going through buffers.
+ */
+public class BtTrie {
+
+  public static final String CONTINUATION_PREFIX = "##";
+
+  private static final int ROOT = 0;
+  private static final int MAGIC = 0x31565442; // "BTV1", little-endian
+  private static final int VERSION = 1;
+  private static final int HEADER_INTS = 5;
+
+  private final IntBuffer edgeStart;
+  private final CharBuffer edgeChars;
+  private final IntBuffer edgeTargets;
+  private final IntBuffer nodeIds;
+  private final int continuationRoot;
+
+  /** The arrays behind the buffers above for a compiled trie, or {@code null} for a mapped one. */
+  private final int[] heapEdgeStart, heapEdgeTargets, heapNodeIds;
+  private final char[] heapEdgeChars;
+  private volatile long fingerprint;
+
+  private static class Node {
+    final TreeMap<Character, Node> children = new TreeMap<>();
+    int id = -1;
+  }
+
+  /**
+   * Compiles a {@link BtTrie}
+   *
+   * @param vocabulary a mapping from sub-tokens in the BERT vocabulary to their inputIds
+   */
+  public BtTrie(Map<String, Integer> vocabulary) {
+    var root = new Node();
+    int nodeCount = 1;
+    for (var e : vocabulary.entrySet()) {
+      var node = root;
+      var key = e.getKey();
+      for (int i = 0; i < key.length(); i++) {
+        var next = node.children.get(key.charAt(i));
+        if (next == null) {
+          next = new Node();
+          node.children.put(key.charAt(i), next);
+          nodeCount++;
+        }
+        node = next;
+      }
+      node.id = e.getValue();
+    }
+
+    var edgeStart = new int[nodeCount + 1];
+    var edgeChars = new char[nodeCount - 1];
+    var edgeTargets = new int[nodeCount - 1];
+    var nodeIds = new int[nodeCount];
+
+    var queue = new ArrayDeque<Node>(nodeCount);
+    queue.add(root);
+    int node = 0, edge = 0, next = 1;
+    while (!queue.isEmpty()) {
+      var n = queue.poll();
+      nodeIds[node] = n.id;
+      edgeStart[node] = edge;
+      for (var c : n.children.entrySet()) {
+        edgeChars[edge] = c.getKey();
+        edgeTargets[edge] = next++;
+        queue.add(c.getValue());
+        edge++;
+      }
+      node++;
+    }
+    edgeStart[nodeCount] = edge;
+
+    this.edgeStart = IntBuffer.wrap(edgeStart);
+    this.edgeChars = CharBuffer.wrap(edgeChars);
+    this.edgeTargets = IntBuffer.wrap(edgeTargets);
+    this.nodeIds = IntBuffer.wrap(nodeIds);
+    this.heapEdgeStart = edgeStart;
+    this.heapEdgeChars = edgeChars;
+    this.heapEdgeTargets = edgeTargets;
+    this.heapNodeIds = nodeIds;
+    this.continuationRoot = continuationRoot();
+  }
+
+  private BtTrie(IntBuffer edgeStart, CharBuffer edgeChars, IntBuffer edgeTargets, IntBuffer nodeIds) {
+    this.edgeStart = edgeStart;
+    this.edgeChars = edgeChars;
+    this.edgeTargets = edgeTargets;
+    this.nodeIds = nodeIds;
+    this.heapEdgeStart = this.heapEdgeTargets = this.heapNodeIds = null;
+    this.heapEdgeChars = null;
+    this.continuationRoot = continuationRoot();
+  }
+
+  private int continuationRoot() {
+    int cr = ROOT;
+    for (int i = 0; i < CONTINUATION_PREFIX.length() && cr != -1; i++) {
+      cr = child(cr, CONTINUATION_PREFIX.charAt(i));
+    }
+    return cr;
+  }
+
+  /**
+   * Loads a trie from a snapshot written by {@link #write(File)}, by mapping it into memory.
+   *
+   * @param snapshot the snapshot file
+   * @return a trie that reads the mapped snapshot in place
+   * @throws IOException if the file can't be read, or isn't a trie snapshot
+   */
+  public static BtTrie map(File snapshot) throws IOException {
+    try (var channel = FileChannel.open(snapshot.toPath(), StandardOpenOption.READ)) {
+      var bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+      if (bytes.limit() < HEADER_INTS * Integer.BYTES || bytes.getInt(0) != MAGIC || bytes.getInt(4) != VERSION) {
+        throw new IOException("Not a vocabulary snapshot: " + snapshot);
+      }
+      int nodeCount = bytes.getInt(8), edgeCount = bytes.getInt(12);
+      long size = HEADER_INTS * Integer.BYTES + (long) (nodeCount + 1 + edgeCount + nodeCount) * Integer.BYTES
+          + (long) edgeCount * Character.BYTES;
+      if (nodeCount < 1 || edgeCount != nodeCount - 1 || size != bytes.limit()) {
+        throw new IOException("Corrupt vocabulary snapshot: " + snapshot);
+      }
+      int offset = HEADER_INTS * Integer.BYTES;
+      var edgeStart = region(bytes, offset, (nodeCount + 1) * Integer.BYTES).asIntBuffer();
+      offset += (nodeCount + 1) * Integer.BYTES;
+      var edgeTargets = region(bytes, offset, edgeCount * Integer.BYTES).asIntBuffer();
+      offset += edgeCount * Integer.BYTES;
+      var nodeIds = region(bytes, offset, nodeCount * Integer.BYTES).asIntBuffer();
+      offset += nodeCount * Integer.BYTES;
+      var edgeChars = region(bytes, offset, edgeCount * Character.BYTES).asCharBuffer();
+      var trie = new BtTrie(edgeStart, edgeChars, edgeTargets, nodeIds);
+      if (bytes.getInt(16) != trie.continuationRoot) {
+        throw new IOException("Corrupt vocabulary snapshot: " + snapshot);
+      }
+      return trie;
+    }
+  }
+
+  private static ByteBuffer region(ByteBuffer bytes, int offset, int length) {
+    return bytes.duplicate().position(offset).limit(offset + length).slice().order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  /**
+   * Saves this trie as a snapshot that can be loaded with {@link #map(File)}. The snapshot is written to a temporary file
+   * first and then moved into place, so readers never see a partial one.
+   *
+   * @param snapshot the file to write
+   * @throws IOException if the file can't be written
+   */
+  public void write(File snapshot) throws IOException {
+    int nodeCount = nodeIds.limit(), edgeCount = edgeTargets.limit();
+    var bytes = ByteBuffer.allocate(HEADER_INTS * Integer.BYTES + (nodeCount + 1 + edgeCount + nodeCount) * Integer.BYTES
+        + edgeCount * Character.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+    bytes.putInt(MAGIC).putInt(VERSION).putInt(nodeCount).putInt(edgeCount).putInt(continuationRoot);
+    bytes.asIntBuffer().put(edgeStart.duplicate().clear());
+    bytes.position(bytes.position() + (nodeCount + 1) * Integer.BYTES);
+    bytes.asIntBuffer().put(edgeTargets.duplicate().clear());
+    bytes.position(bytes.position() + edgeCount * Integer.BYTES);
+    bytes.asIntBuffer().put(nodeIds.duplicate().clear());
+    bytes.position(bytes.position() + nodeCount * Integer.BYTES);
+    bytes.asCharBuffer().put(edgeChars.duplicate().clear());
+    var target = snapshot.getAbsoluteFile().toPath();
+    var tmp = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+    try {
+      Files.write(tmp, bytes.array());
+      Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(tmp);
+    }
+  }
+
+  private int child(int node, char c) {
+    return heapEdgeStart != null ? heapChild(node, c) : mappedChild(node, c);
+  }
+
+  private int heapChild(int node, char c) {
+    int lo = heapEdgeStart[node];
+    int hi = heapEdgeStart[node + 1] - 1;
+    while (lo <= hi) {
+      int mid = (lo + hi) >>> 1;
+      char mc = heapEdgeChars[mid];
+      if (mc < c) {
+        lo = mid + 1;
+      } else if (mc > c) {
+        hi = mid - 1;
+      } else {
+        return heapEdgeTargets[mid];
+      }
+    }
+    return -1;
+  }
+
+  private int mappedChild(int node, char c) {
+    int lo = edgeStart.get(node);
+    int hi = edgeStart.get(node + 1) - 1;
+    while (lo <= hi) {
+      int mid = (lo + hi) >>> 1;
+      char mc = edgeChars.get(mid);
+      if (mc < c) {
+        lo = mid + 1;
+      } else if (mc > c) {
+        hi = mid - 1;
+      } else {
+        return edgeTargets.get(mid);
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Finds the longest non-empty vocabulary entry which is a prefix of {@code chars[start, end)}.
+   *
+   * @param chars the characters to match
+   * @param start index of the first character to match
+   * @param end index past the last character that may be matched
+   * @param continuation whether to match {@code ##} continuation sub-tokens instead of word-initial ones
+   * @return the match, packed as described in {@link #matchEnd(long)} and {@link #matchId(long)}, or {@code -1} if nothing matched
+   */
+  public long match(char[] chars, int start, int end, boolean continuation) {
+    int node = continuation ? continuationRoot : ROOT;
+    long match = -1;
+    if (heapNodeIds != null) {
+      for (int i = start; i < end && node != -1; i++) {
+        node = heapChild(node, chars[i]);
+        if (node != -1 && heapNodeIds[node] != -1) {
+          match = ((long) (i + 1) << 32) | (heapNodeIds[node] & 0xFFFFFFFFL);
+        }
+      }
+      return match;
+    }
+    for (int i = start; i < end && node != -1; i++) {
+      node = mappedChild(node, chars[i]);
+      if (node != -1 && nodeIds.get(node) != -1) {
+        match = ((long) (i + 1) << 32) | (nodeIds.get(node) & 0xFFFFFFFFL);
+      }
+    }
+    return match;
+  }
+
+  /**
+   * Looks up the inputId of a complete vocabulary entry.
+   *
+   * @param token the sub-token, including its {@code ##} prefix if it has one
+   * @return the inputId for the sub-token, or {@code -1} if it's not in the vocabulary
+   */
+  public int get(CharSequence token) {
+    int node = ROOT;
+    for (int i = 0; i < token.length() && node != -1; i++) {
+      node = child(node, token.charAt(i));
+    }
+    return node == -1 ? -1 : nodeIds.get(node);
+  }
+
+  /**
+   * Lists the vocabulary's entries. This allocates every entry as a string, so it's meant for occasional use.
+   *
+   * @return the sub-tokens, including their {@code ##} prefixes, indexed by inputId. Ids with no entry are {@code null}.
+   */
+  public String[] tokens() {
+    int nodeCount = nodeIds.limit(), maxId = -1;
+    for (int node = 0; node < nodeCount; node++) {
+      maxId = Math.max(maxId, nodeIds.get(node));
+    }
+    var prefixes = new String[nodeCount];
+    var tokens = new String[maxId + 1];
+    prefixes[ROOT] = "";
+    for (int node = 0; node < nodeCount; node++) { // Nodes are breadth-first, so parents come before their children
+      for (int edge = edgeStart.get(node); edge < edgeStart.get(node + 1); edge++) {
+        prefixes[edgeTargets.get(edge)] = prefixes[node] + edgeChars.get(edge);
+      }
+      if (nodeIds.get(node) != -1) {
+        tokens[nodeIds.get(node)] = prefixes[node];
+      }
+      prefixes[node] = null;
+    }
+    return tokens;
+  }
+
+  /**
+   * @return a 64-bit hash of the whole trie, equal for tries compiled from the same vocabulary. It's computed on first use.
+   */
+  public long fingerprint() {
+    long h = fingerprint;
+    if (h == 0) {
+      h = 1125899906842597L;
+      for (var ints : new IntBuffer[] {edgeStart, edgeTargets, nodeIds}) {
+        for (int i = 0; i < ints.limit(); i++) {
+          h = 31 * h + ints.get(i);
+        }
+      }
+      for (int i = 0; i < edgeChars.limit(); i++) {
+        h = 31 * h + edgeChars.get(i);
+      }
+      fingerprint = h = h == 0 ? 1 : h;
+    }
+    return h;
+  }
+
+  /**
+   * @param match a non-negative result of {@link #match(char[], int, int, boolean)}
+   * @return the index past the last matched character
+   */
+  public static int matchEnd(long match) {
+    return (int) (match >>> 32);
+  }
+
+  /**
+   * @param match a non-negative result of {@link #match(char[], int, int, boolean)}
+   * @return the inputId of the matched sub-token
+   */
+  public static int matchId(long match) {
+    return (int) match;
+  }
+
+}
@@ -0,0 +1,378 @@
+package io.vacco.bertastic;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * A flat, in-process index of embedding vectors, such as the output of {@link BtSession#embedSequences(String...)}, for exact
+ * top-k similarity search.
+ * <p>
+ * Vectors are stored back to back in off-heap memory, either as float32 values or as int8 values with a per-vector scale, which
+ * takes about a quarter of the space at a small cost in precision. With {@link Metric#COSINE}, vectors are normalized when added,
+ * so searches only need dot products. Searches scan every vector, splitting large indexes across cores, and keep the best
+ * {@code k} matches in a bounded heap.
+ * <p>
+ * An index can be saved with {@link #write(File)} and loaded back with {@link #map(File)}, which maps the file instead of reading
+ * it. Vectors can be added from any thread while searches run; each search sees the vectors added before it started.
+ */
+public class BtVectorIndex {
+
+  /** How search scores are computed. */
+  public enum Metric { DOT, COSINE }
+
+  /** How vectors are stored. */
+  public enum Storage { FLOAT32, INT8 }
+
+  /** A search result. */
+  public static class Hit {
+    /** The id of the vector, as returned by {@link #add(float[])}. */
+    public final int id;
+    /** The similarity of the vector to the query. */
+    public final float score;
+
+    Hit(int id, float score) {
+      this.id = id;
+      this.score = score;
+    }
+
+    @Override public String toString() {
+      return id + ":" + score;
+    }
+  }
+
+  private static final int MAGIC = 0x31585442; // "BTX1", little-endian
+  private static final int VERSION = 1;
+  private static final int HEADER_BYTES = 24;
+  private static final int PARALLEL_ROWS = 16384;
+  private static final int SLICE_ROWS = 8192;
+
+  /** The stored vectors, replaced as a whole whenever a vector is added, so that searches see a consistent set. */
+  private static final class Rows {
+    final ByteBuffer data;
+    final int count;
+
+    Rows(ByteBuffer data, int count) {
+      this.data = data;
+      this.count = count;
+    }
+  }
+
+  /** Keeps the best {@code k} scores seen, in a heap whose root is the worst of them. Ties favor lower ids. */
+  private static final class TopK {
+    final float[] scores;
+    final int[] ids;
+    int size;
+
+    TopK(int k) {
+      scores = new float[k];
+      ids = new int[k];
+    }
+
+    static boolean better(float score, int id, float otherScore, int otherId) {
+      return score > otherScore || score == otherScore && id < otherId;
+    }
+
+    void offer(int id, float score) {
+      if (size < scores.length) {
+        int i = size++;
+        while (i > 0) {
+          int parent = (i - 1) >>> 1;
+          if (!better(scores[parent], ids[parent], score, id)) {
+            break;
+          }
+          scores[i] = scores[parent];
+          ids[i] = ids[parent];
+          i = parent;
+        }
+        scores[i] = score;
+        ids[i] = id;
+      } else if (better(score, id, scores[0], ids[0])) {
+        int i = 0;
+        while (true) {
+          int child = 2 * i + 1;
+          if (child >= size) {
+            break;
+          }
+          if (child + 1 < size && better(scores[child], ids[child], scores[child + 1], ids[child + 1])) {
+            child++;
+          }
+          if (!better(score, id, scores[child], ids[child])) {
+            break;
+          }
+          scores[i] = scores[child];
+          ids[i] = ids[child];
+          i = child;
+        }
+        scores[i] = score;
+        ids[i] = id;
+      }
+    }
+
+    Hit[] hits() {
+      var hits = new Hit[size];
+      for (int i = 0; i < size; i++) {
+        hits[i] = new Hit(ids[i], scores[i]);
+      }
+      Arrays.sort(hits, (a, b) -> a == b ? 0 : better(a.score, a.id, b.score, b.id) ? -1 : 1);
+      return hits;
+    }
+  }
+
+  public final int dimensions;
+  public final Metric metric;
+  public final Storage storage;
+
+  private final int rowBytes;
+  private volatile Rows rows;
+
+  /**
+   * Creates an empty index.
+   *
+   * @param dimensions the length of the vectors
+   * @param metric how search scores are computed
+   * @param storage how vectors are stored
+   */
+  public BtVectorIndex(int dimensions, Metric metric, Storage storage) {
+    this(dimensions, metric, storage, ByteBuffer.allocateDirect(0), 0);
+  }
+
+  private BtVectorIndex(int dimensions, Metric metric, Storage storage, ByteBuffer data, int count) {
+    if (dimensions < 1) {
+      throw new IllegalArgumentException("Vector dimensions must be positive: " + dimensions);
+    }
+    this.dimensions = dimensions;
+    this.metric = metric;
+    this.storage = storage;
+    this.rowBytes = storage == Storage.FLOAT32 ? dimensions * Float.BYTES : Float.BYTES + dimensions;
+    this.rows = new Rows(data.order(ByteOrder.LITTLE_ENDIAN), count);
+  }
+
+  /**
+   * Adds a vector to the index.
+   *
+   * @param vector the vector to add. It's copied.
+   * @return the id of the vector, which is the number of vectors added before it
+   */
+  public synchronized int add(float[] vector) {
+    if (vector.length != dimensions) {
+      throw new IllegalArgumentException("Expected " + dimensions + " dimensions, got " + vector.length);
+    }
+    var current = rows;
+    var data = current.data;
+    long needed = (long) (current.count + 1) * rowBytes;
+    if (needed > data.capacity()) { // Also the case for a mapped index, whose file is never written to
+      long capacity = Math.min(Integer.MAX_VALUE, Math.max(needed, 2L * data.capacity()));
+      if (needed > capacity) {
+        throw new IllegalStateException("Vector index is full: " + current.count + " vectors");
+      }
+      var grown = ByteBuffer.allocateDirect((int) capacity).order(ByteOrder.LITTLE_ENDIAN);
+      grown.put(data.duplicate().position(0).limit(current.count * rowBytes)).clear();
+      data = grown;
+    }
+    var values = metric == Metric.COSINE ? BtVectors.normalize(vector.clone()) : vector;
+    int offset = current.count * rowBytes;
+    if (storage == Storage.FLOAT32) {
+      for (int i = 0; i < dimensions; i++) {
+        data.putFloat(offset + i * Float.BYTES, values[i]);
+      }
+    } else {
+      var quantized = BtInt8Vector.of(values);
+      data.putFloat(offset, quantized.scale);
+      data.duplicate().position(offset + Float.BYTES).put(quantized.values);
+    }
+    rows = new Rows(data, current.count + 1);
+    return current.count;
+  }
+
+  /**
+   * Adds several vectors to the index.
+   *
+   * @param vectors the vectors to add
+   * @return the id of the first vector. The others follow it in order.
+   */
+  public synchronized int addAll(float[][] vectors) {
+    int first = size();
+    for (var vector : vectors) {
+      add(vector);
+    }
+    return first;
+  }
+
+  /**
+   * @return the number of vectors in the index
+   */
+  public int size() {
+    return rows.count;
+  }
+
+  /**
+   * @param id the id of a vector
+   * @return the vector as stored, which is normalized for {@link Metric#COSINE} and approximate for {@link Storage#INT8}
+   */
+  public float[] get(int id) {
+    var current = rows;
+    if (id < 0 || id >= current.count) {
+      throw new IndexOutOfBoundsException("No vector with id " + id);
+    }
+    var out = new float[dimensions];
+    int offset = id * rowBytes;
+    if (storage == Storage.FLOAT32) {
+      for (int i = 0; i < dimensions; i++) {
+        out[i] = current.data.getFloat(offset + i * Float.BYTES);
+      }
+    } else {
+      float scale = current.data.getFloat(offset);
+      for (int i = 0; i < dimensions; i++) {
+        out[i] = current.data.get(offset + Float.BYTES + i) * scale;
+      }
+    }
+    return out;
+  }
+
+  /**
+   * Finds the vectors most similar to a query.
+   *
+   * @param query the query vector
+   * @param k the maximum number of results
+   * @return up to {@code k} results, best first
+   */
+  public Hit[] search(float[] query, int k) {
+    if (query.length != dimensions) {
+      throw new IllegalArgumentException("Expected " + dimensions + " dimensions, got " + query.length);
+    }
+    var current = rows;
+    if (k < 1 || current.count == 0) {
+      return new Hit[0];
+    }
+    var q = metric == Metric.COSINE ? BtVectors.normalize(query.clone()) : query;
+    int limit = Math.min(k, current.count);
+    if (current.count < PARALLEL_ROWS) {
+      return scan(current, q, 0, current.count, limit).hits();
+    }
+    var slices = new ArrayList<Callable<TopK>>();
+    for (int from = 0; from < current.count; from += SLICE_ROWS) {
+      int start = from, end = Math.min(from + SLICE_ROWS, current.count);
+      slices.add(() -> scan(current, q, start, end, limit));
+    }
+    var top = new TopK(limit);
+    try {
+      for (var slice : ForkJoinPool.commonPool().invokeAll(slices)) {
+        var partial = slice.get();
+        for (int i = 0; i < partial.size; i++) {
+          top.offer(partial.ids[i], partial.scores[i]);
+        }
+      }
+    } catch (ExecutionException e) {
+      throw new IllegalStateException("Vector search failed", e.getCause());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted during vector search", e);
+    }
+    return top.hits();
+  }
+
+  private TopK scan(Rows current, float[] q, int from, int to, int k) {
+    var top = new TopK(k);
+    if (storage == Storage.FLOAT32) {
+      var floats = current.data.duplicate().clear().order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+      var row = new float[dimensions];
+      floats.position(from * dimensions);
+      for (int id = from; id < to; id++) {
+        floats.get(row);
+        top.offer(id, BtVectors.dot(q, row));
+      }
+    } else {
+      var bytes = current.data.duplicate().clear().order(ByteOrder.LITTLE_ENDIAN);
+      var row = new byte[dimensions];
+      bytes.position(from * rowBytes);
+      for (int id = from; id < to; id++) {
+        float scale = bytes.getFloat();
+        bytes.get(row);
+        float s0 = 0, s1 = 0;
+        int i = 0;
+        for (; i + 1 < dimensions; i += 2) {
+          s0 += q[i] * row[i];
+          s1 += q[i + 1] * row[i + 1];
+        }
+        if (i < dimensions) {
+          s0 += q[i] * row[i];
+        }
+        top.offer(id, (s0 + s1) * scale);
+      }
+    }
+    return top;
+  }
+
+  /**
+   * Saves this index to a file that can be loaded with {@link #map(File)}. The file is written to a temporary file first and
+   * then moved into place, so readers never see a partial one.
+   *
+   * @param file the file to write
+   * @throws IOException if the file can't be written
+   */
+  public void write(File file) throws IOException {
+    var current = rows;
+    var header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+    header.putInt(MAGIC).putInt(VERSION).putInt(dimensions).putInt(storage.ordinal()).putInt(metric.ordinal())
+        .putInt(current.count).flip();
+    var body = current.data.duplicate().position(0).limit(current.count * rowBytes);
+    var target = file.getAbsoluteFile().toPath();
+    var tmp = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+    try {
+      try (var channel = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+        while (header.hasRemaining()) {
+          channel.write(header);
+        }
+        while (body.hasRemaining()) {
+          channel.write(body);
+        }
+      }
+      Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      Files.deleteIfExists(tmp);
+    }
+  }
+
+  /**
+   * Loads an index saved with {@link #write(File)} by mapping it into memory. Vectors added afterwards are kept in memory, and
+   * are only saved by another call to {@link #write(File)}.
+   *
+   * @param file the file to load
+   * @return the loaded index
+   * @throws IOException if the file can't be read, or isn't a vector index
+   */
+  public static BtVectorIndex map(File file) throws IOException {
+    try (var channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      if (channel.size() < HEADER_BYTES || channel.size() > Integer.MAX_VALUE) {
+        throw new IOException("Not a vector index: " + file);
+      }
+      var bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()).order(ByteOrder.LITTLE_ENDIAN);
+      if (bytes.getInt(0) != MAGIC || bytes.getInt(4) != VERSION) {
+        throw new IOException("Not a vector index: " + file);
+      }
+      int dimensions = bytes.getInt(8), storage = bytes.getInt(12), metric = bytes.getInt(16), count = bytes.getInt(20);
+      if (dimensions < 1 || storage < 0 || storage >= Storage.values().length || metric < 0 || metric >= Metric.values().length) {
+        throw new IOException("Corrupt vector index: " + file);
+      }
+      var s = Storage.values()[storage];
+      long rowBytes = s == Storage.FLOAT32 ? (long) dimensions * Float.BYTES : Float.BYTES + (long) dimensions;
+      if (count < 0 || HEADER_BYTES + count * rowBytes != bytes.limit()) {
+        throw new IOException("Corrupt vector index: " + file);
+      }
+      var data = bytes.position(HEADER_BYTES).slice();
+      return new BtVectorIndex(dimensions, Metric.values()[metric], s, data, count);
+    }
+  }
+
+}
@@ -0,0 +1,216 @@
+package io.vacco.bertastic;
+
+/**
+ * Similarity and conversion helpers for embedding vectors, including their half-precision ({@code short[]} holding IEEE 754
+ * binary16 values) and {@link BtInt8Vector} forms. The helpers for those forms work on the compact values directly, without
+ * converting whole vectors back to floats.
+ */
+public class BtVectors {
+
+  private static final class HalfTable { // 256 KB, only built once half-precision vectors are used
+    static final float[] FLOATS = new float[1 << 16];
+
+    static {
+      for (int h = 0; h < FLOATS.length; h++) {
+        FLOATS[h] = decodeHalf(h);
+      }
+    }
+  }
+
+  private BtVectors() {}
+
+  private static void checkLengths(int a, int b) {
+    if (a != b) {
+      throw new IllegalArgumentException("Vector lengths differ: " + a + " != " + b);
+    }
+  }
+
+  /**
+   * @return the dot product of two vectors of the same length
+   */
+  public static float dot(float[] a, float[] b) {
+    checkLengths(a.length, b.length);
+    float s0 = 0, s1 = 0, s2 = 0, s3 = 0;
+    int i = 0;
+    for (; i + 3 < a.length; i += 4) {
+      s0 += a[i] * b[i];
+      s1 += a[i + 1] * b[i + 1];
+      s2 += a[i + 2] * b[i + 2];
+      s3 += a[i + 3] * b[i + 3];
+    }
+    for (; i < a.length; i++) {
+      s0 += a[i] * b[i];
+    }
+    return (s0 + s1) + (s2 + s3);
+  }
+
+  /**
+   * @return the Euclidean length of a vector
+   */
+  public static float norm(float[] a) {
+    return (float) Math.sqrt(dot(a, a));
+  }
+
+  /**
+   * Scales a vector to unit length, in place. A zero vector is left as is.
+   *
+   * @return {@code a}
+   */
+  public static float[] normalize(float[] a) {
+    float norm = norm(a);
+    if (norm > 0) {
+      for (int i = 0; i < a.length; i++) {
+        a[i] /= norm;
+      }
+    }
+    return a;
+  }
+
+  /**
+   * @return the cosine similarity of two vectors of the same length, or 0 if either is a zero vector
+   */
+  public static float cosine(float[] a, float[] b) {
+    float norms = norm(a) * norm(b);
+    return norms == 0 ? 0 : dot(a, b) / norms;
+  }
+
+  /**
+   * Converts a float to the nearest IEEE 754 half-precision value, rounding ties to even.
+   *
+   * @return the bits of the half-precision value
+   */
+  public static short toHalf(float f) {
+    int bits = Float.floatToRawIntBits(f);
+    int sign = (bits >>> 16) & 0x8000;
+    int exponent = ((bits >>> 23) & 0xFF) - 127 + 15;
+    int mantissa = bits & 0x7FFFFF;
+    if (exponent == 0xFF - 127 + 15) { // Infinity or NaN
+      return (short) (sign | 0x7C00 | (mantissa != 0 ? 0x200 | (mantissa >>> 13) : 0));
+    }
+    if (exponent >= 0x1F) {
+      return (short) (sign | 0x7C00);
+    }
+    int shift = 13;
+    int half;
+    if (exponent <= 0) { // Subnormal half
+      if (exponent < -10) {
+        return (short) sign;
+      }
+      mantissa |= 0x800000;
+      shift = 14 - exponent;
+      half = mantissa >>> shift;
+    } else {
+      half = (exponent << 10) | (mantissa >>> shift);
+    }
+    int rest = mantissa & ((1 << shift) - 1), midpoint = 1 << (shift - 1);
+    if (rest > midpoint || rest == midpoint && (half & 1) != 0) {
+      half++; // May carry into the exponent, which is still the correctly rounded result
+    }
+    return (short) (sign | half);
+  }
+
+  /**
+   * @param half the bits of an IEEE 754 half-precision value
+   * @return the value as a float
+   */
+  public static float fromHalf(short half) {
+    return HalfTable.FLOATS[half & 0xFFFF];
+  }
+
+  private static float decodeHalf(int half) {
+    int sign = (half & 0x8000) << 16;
+    int exponent = (half >>> 10) & 0x1F;
+    int mantissa = half & 0x3FF;
+    if (exponent == 0) {
+      float value = mantissa * 0x1p-24f;
+      return sign != 0 ? -value : value;
+    }
+    if (exponent == 0x1F) {
+      return Float.intBitsToFloat(sign | 0x7F800000 | (mantissa << 13));
+    }
+    return Float.intBitsToFloat(sign | ((exponent - 15 + 127) << 23) | (mantissa << 13));
+  }
+
+  /**
+   * @return the half-precision form of a vector
+   */
+  public static short[] toHalf(float[] a) {
+    var out = new short[a.length];
+    for (int i = 0; i < a.length; i++) {
+      out[i] = toHalf(a[i]);
+    }
+    return out;
+  }
+
+  /**
+   * @return the dot product of two half-precision vectors of the same length
+   */
+  public static float dot(short[] a, short[] b) {
+    checkLengths(a.length, b.length);
+    var floats = HalfTable.FLOATS;
+    float sum = 0;
+    for (int i = 0; i < a.length; i++) {
+      sum += floats[a[i] & 0xFFFF] * floats[b[i] & 0xFFFF];
+    }
+    return sum;
+  }
+
+  /**
+   * @return the dot product of a float vector, such as a query, and a half-precision vector of the same length
+   */
+  public static float dot(float[] a, short[] b) {
+    checkLengths(a.length, b.length);
+    var floats = HalfTable.FLOATS;
+    float sum = 0;
+    for (int i = 0; i < a.length; i++) {
+      sum += a[i] * floats[b[i] & 0xFFFF];
+    }
+    return sum;
+  }
+
+  /**
+   * @return the cosine similarity of two half-precision vectors of the same length, or 0 if either is a zero vector
+   */
+  public static float cosine(short[] a, short[] b) {
+    float norms = (float) Math.sqrt(dot(a, a) * (double) dot(b, b));
+    return norms == 0 ? 0 : dot(a, b) / norms;
+  }
+
+  /**
+   * @return the dot product of two quantized vectors of the same length, accumulated exactly in integers
+   */
+  public static float dot(BtInt8Vector a, BtInt8Vector b) {
+    return dotInt8(a.values, b.values) * a.scale * b.scale;
+  }
+
+  /**
+   * @return the dot product of a float vector, such as a query, and a quantized vector of the same length
+   */
+  public static float dot(float[] a, BtInt8Vector b) {
+    checkLengths(a.length, b.values.length);
+    float sum = 0;
+    for (int i = 0; i < a.length; i++) {
+      sum += a[i] * b.values[i];
+    }
+    return sum * b.scale;
+  }
+
+  /**
+   * @return the cosine similarity of two quantized vectors of the same length, or 0 if either is a zero vector. Scales cancel
+   *         out, so this only uses the integer values.
+   */
+  public static float cosine(BtInt8Vector a, BtInt8Vector b) {
+    double norms = Math.sqrt((double) dotInt8(a.values, a.values) * dotInt8(b.values, b.values));
+    return norms == 0 ? 0 : (float) (dotInt8(a.values, b.values) / norms);
+  }
+
+  private static long dotInt8(byte[] a, byte[] b) {
+    checkLengths(a.length, b.length);
+    long sum = 0;
+    for (int i = 0; i < a.length; i++) {
+      sum += a[i] * b[i];
+    }
+    return sum;
+  }
+
+}
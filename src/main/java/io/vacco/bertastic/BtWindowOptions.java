@@ -0,0 +1,30 @@
+package io.vacco.bertastic;
+
+public class BtWindowOptions {
+
+  /** How the embeddings of a document's windows are combined into one vector. */
+  public enum Combine {
+    /** The plain mean of the window embeddings. */
+    MEAN,
+    /** The element-wise maximum of the window embeddings. */
+    MAX,
+    /** The mean of the window embeddings, weighted by the number of tokens in each window. */
+    LENGTH_WEIGHTED
+  }
+
+  /** Number of tokens per window, not counting start and separator tokens. 0 uses as many as the model allows. */
+  public int windowTokens = 0;
+
+  /**
+   * Number of tokens between the starts of consecutive windows, at most the window size. 0 uses half a window, so windows
+   * overlap by half.
+   */
+  public int stride = 0;
+
+  /** How each window is reduced to a vector. */
+  public BtPooling[] pooling = {BtPooling.CLS};
+
+  /** How window vectors are combined into a document vector. */
+  public Combine combine = Combine.MEAN;
+
+}
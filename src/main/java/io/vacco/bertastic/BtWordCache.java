@@ -0,0 +1,178 @@
+package io.vacco.bertastic;
+
+import java.lang.ref.WeakReference;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded, lock-free cache of the inputIds that {@link BtWordPiece} splits words into.
+ * <p>
+ * Word frequencies in natural text are heavily skewed, so a small cache of common words saves most of the sub-token matching.
+ * Entries live in a fixed table of 2-entry sets, indexed by a hash of the word's characters. Lookups are a volatile read and
+ * a character comparison, and a new word replaces one of the two entries in its set, so the cache never grows past its capacity
+ * and never blocks.
+ * <p>
+ * A cache must only be used with the vocabulary it was filled from. {@link #shared(BtTrie)} returns a single cache per distinct
+ * vocabulary, which {@link BtFull} tokenizers built over equal vocabularies share, even across sessions.
+ */
+public class BtWordCache {
+
+  public static final int DEFAULT_CAPACITY = 1 << 16;
+  public static final int DEFAULT_PREWARM_WORDS = 8192;
+
+  private static final Map<Long, WeakReference<BtWordCache>> SHARED = new HashMap<>();
+
+  private static final class Entry {
+    final char[] word;
+    final int hash;
+    final int[] ids;
+
+    Entry(char[] word, int hash, int[] ids) {
+      this.word = word;
+      this.hash = hash;
+      this.ids = ids;
+    }
+
+    boolean matches(char[] chars, int start, int end, int hash) {
+      return this.hash == hash && Arrays.equals(word, 0, word.length, chars, start, end);
+    }
+  }
+
+  private final AtomicReferenceArray<Entry> table;
+  private final int mask;
+  private final LongAdder hits = new LongAdder(), misses = new LongAdder();
+
+  /**
+   * @param capacity maximum number of cached words, rounded up to a power of two
+   */
+  public BtWordCache(int capacity) {
+    int size = Integer.highestOneBit(Math.max(2, capacity - 1) << 1);
+    this.table = new AtomicReferenceArray<>(size);
+    this.mask = size - 1;
+  }
+
+  /**
+   * Gets the cache shared by all tokenizers over a vocabulary, creating it if needed. A new cache is filled with the first
+   * {@link #DEFAULT_PREWARM_WORDS} word-initial entries of the vocabulary, which BERT vocabularies list roughly by frequency.
+   *
+   * @param vocabulary the compiled BERT vocabulary, split with the default unknown token and word length limit
+   * @return a cache for the vocabulary
+   */
+  public static BtWordCache shared(BtTrie vocabulary) {
+    var key = vocabulary.fingerprint();
+    synchronized (SHARED) {
+      SHARED.values().removeIf(ref -> ref.get() == null);
+      var ref = SHARED.get(key);
+      var cache = ref != null ? ref.get() : null;
+      if (cache == null) {
+        cache = new BtWordCache(DEFAULT_CAPACITY);
+        cache.prewarm(new BtWordPiece(vocabulary), DEFAULT_PREWARM_WORDS);
+        SHARED.put(key, new WeakReference<>(cache));
+      }
+      return cache;
+    }
+  }
+
+  /**
+   * Fills the cache with the splits of the lowest-numbered word-initial vocabulary entries, skipping special tokens such as
+   * {@code [CLS]}. Lookup statistics are not affected.
+   *
+   * @param wordpiece the tokenizer to split words with
+   * @param words the number of words to add
+   */
+  public void prewarm(BtWordPiece wordpiece, int words) {
+    var tokens = wordpiece.getTrie().tokens();
+    var ids = new int[16];
+    int added = 0;
+    for (int id = 0; id < tokens.length && added < words; id++) {
+      var token = tokens[id];
+      if (token == null || token.isEmpty() || token.startsWith(BtTrie.CONTINUATION_PREFIX) || token.startsWith("[")) {
+        continue;
+      }
+      var chars = token.toCharArray();
+      if (ids.length < chars.length) {
+        ids = new int[chars.length];
+      }
+      int count = wordpiece.match(chars, 0, chars.length, ids, 0);
+      put(chars, 0, chars.length, hash(chars, 0, chars.length), ids, 0, count);
+      added++;
+    }
+  }
+
+  static int hash(char[] chars, int start, int end) {
+    int h = 0;
+    for (int i = start; i < end; i++) {
+      h = 31 * h + chars[i];
+    }
+    return h * 0x9E3779B9;
+  }
+
+  /**
+   * @param hash the word's {@link #hash(char[], int, int)}
+   * @return the cached inputIds for {@code chars[start, end)}, or {@code null} if they're not cached. They must not be modified.
+   */
+  int[] get(char[] chars, int start, int end, int hash) {
+    int set = (hash >>> 16 ^ hash) & mask & ~1;
+    var e = table.get(set);
+    if (e == null || !e.matches(chars, start, end, hash)) {
+      e = table.get(set + 1);
+      if (e == null || !e.matches(chars, start, end, hash)) {
+        misses.increment();
+        return null;
+      }
+    }
+    hits.increment();
+    return e.ids;
+  }
+
+  /** Caches the inputIds {@code ids[offset, offset + count)} for {@code chars[start, end)}. */
+  void put(char[] chars, int start, int end, int hash, int[] ids, int offset, int count) {
+    var e = new Entry(Arrays.copyOfRange(chars, start, end), hash, Arrays.copyOfRange(ids, offset, offset + count));
+    int set = (hash >>> 16 ^ hash) & mask & ~1;
+    if (table.get(set) == null) {
+      table.set(set, e);
+    } else if (table.get(set + 1) == null) {
+      table.set(set + 1, e);
+    } else {
+      table.set(set + (hash & 1), e);
+    }
+  }
+
+  public long hits() {
+    return hits.sum();
+  }
+
+  public long misses() {
+    return misses.sum();
+  }
+
+  /**
+   * @return the fraction of lookups that were hits, or 0 if there were no lookups
+   */
+  public double hitRate() {
+    long h = hits(), total = h + misses();
+    return total == 0 ? 0 : (double) h / total;
+  }
+
+  /**
+   * @return the maximum number of cached words
+   */
+  public int capacity() {
+    return table.length();
+  }
+
+  /**
+   * @return the number of cached words. This scans the whole table.
+   */
+  public int size() {
+    int size = 0;
+    for (int i = 0; i < table.length(); i++) {
+      if (table.get(i) != null) {
+        size++;
+      }
+    }
+    return size;
+  }
+
+}
@@ -19,7 +19,9 @@ public class BtWordPiece extends BtTokenizer {
 
   private final int maxCharactersPerWord;
   private final String unknownToken;
-  private final Map<String, Integer> vocabulary;
+  private final int unknownTokenId;
+  private final BtTrie trie;
+  private final BtWordCache cache;
 
   /**
    * Creates a BERT {@link BtWordPiece}
@@ -27,9 +29,7 @@ public class BtWordPiece extends BtTokenizer {
    * @param vocabulary a mapping from sub-tokens in the BERT vocabulary to their inputIds
    */
   public BtWordPiece(Map<String, Integer> vocabulary) {
-    this.vocabulary = vocabulary;
-    unknownToken = DEFAULT_UNKNOWN_TOKEN;
-    maxCharactersPerWord = DEFAULT_MAX_CHARACTERS_PER_WORD;
+    this(vocabulary, DEFAULT_UNKNOWN_TOKEN, DEFAULT_MAX_CHARACTERS_PER_WORD);
   }
 
   /**
@@ -40,8 +40,53 @@ public class BtWordPiece extends BtTokenizer {
    * @param maxCharactersPerToken the maximum number of characters allowed in a token to be sub-tokenized
    */
   public BtWordPiece(Map<String, Integer> vocabulary, String unknownToken, int maxCharactersPerToken) {
-    this.vocabulary = vocabulary;
+    this(new BtTrie(vocabulary), unknownToken, maxCharactersPerToken);
+  }
+
+  /**
+   * Creates a BERT {@link BtWordPiece}
+   *
+   * @param trie the compiled BERT vocabulary
+   */
+  public BtWordPiece(BtTrie trie) {
+    this(trie, DEFAULT_UNKNOWN_TOKEN, DEFAULT_MAX_CHARACTERS_PER_WORD);
+  }
+
+  /**
+   * Creates a BERT {@link BtWordPiece}
+   *
+   * @param trie                  the compiled BERT vocabulary
+   * @param unknownToken          the sub-token to use when an unrecognized or too-long token is encountered
+   * @param maxCharactersPerToken the maximum number of characters allowed in a token to be sub-tokenized
+   */
+  public BtWordPiece(BtTrie trie, String unknownToken, int maxCharactersPerToken) {
+    this(trie, unknownToken, maxCharactersPerToken, null);
+  }
+
+  /**
+   * Creates a BERT {@link BtWordPiece} that remembers the inputIds of the words it splits
+   *
+   * @param trie  the compiled BERT vocabulary
+   * @param cache the cache to look words up in, such as {@link BtWordCache#shared(BtTrie)}. It must only hold splits made with
+   *              the same vocabulary and the default unknown token.
+   */
+  public BtWordPiece(BtTrie trie, BtWordCache cache) {
+    this(trie, DEFAULT_UNKNOWN_TOKEN, DEFAULT_MAX_CHARACTERS_PER_WORD, cache);
+  }
+
+  /**
+   * Creates a BERT {@link BtWordPiece}
+   *
+   * @param trie                  the compiled BERT vocabulary
+   * @param unknownToken          the sub-token to use when an unrecognized or too-long token is encountered
+   * @param maxCharactersPerToken the maximum number of characters allowed in a token to be sub-tokenized
+   * @param cache                 an optional cache of the inputIds of words split with the same vocabulary and unknown token
+   */
+  public BtWordPiece(BtTrie trie, String unknownToken, int maxCharactersPerToken, BtWordCache cache) {
+    this.trie = trie;
     this.unknownToken = unknownToken;
+    this.unknownTokenId = trie.get(unknownToken);
+    this.cache = cache;
     maxCharactersPerWord = maxCharactersPerToken;
   }
 
@@ -53,29 +98,88 @@ public class BtWordPiece extends BtTokenizer {
 
     Stream.Builder<String> subtokens = Stream.builder();
     int start = 0;
-    int end;
     while (start < characters.length) {
-      end = characters.length;
-      boolean found = false;
-      while (start < end) {
-        String substring = (start > 0 ? "##" : "") + String.valueOf(characters, start, end - start);
-        if (vocabulary.containsKey(substring)) {
-          subtokens.accept(substring);
-          start = end;
-          found = true;
-          break;
-        }
-        end--;
-      }
-      if (!found) {
+      long match = trie.match(characters, start, characters.length, start > 0);
+      if (match == -1) {
         subtokens.accept(unknownToken);
         break;
       }
+      int end = BtTrie.matchEnd(match);
+      subtokens.accept((start > 0 ? BtTrie.CONTINUATION_PREFIX : "") + String.valueOf(characters, start, end - start));
       start = end;
     }
     return subtokens.build();
   }
 
+  /**
+   * Splits a single token into the inputIds of its sub-tokens, without creating any intermediate strings. With a
+   * {@link BtWordCache}, tokens are looked up in it first, except for ones over the maximum length, which are always unknown.
+   * A token never produces more inputIds than it has characters, so {@code ids} needs at most
+   * {@code max(1, end - start)} free slots past {@code offset}.
+   *
+   * @param chars  the characters holding the token
+   * @param start  index of the first character of the token
+   * @param end    index past the last character of the token
+   * @param ids    the array to write inputIds into
+   * @param offset index in {@code ids} of the first inputId to write
+   * @return the number of inputIds written
+   */
+  public int splitToken(char[] chars, int start, int end, int[] ids, int offset) {
+    if (end - start > maxCharactersPerWord) {
+      ids[offset] = unknownTokenId();
+      return 1;
+    }
+    if (cache == null) {
+      return match(chars, start, end, ids, offset);
+    }
+    int hash = BtWordCache.hash(chars, start, end);
+    var cached = cache.get(chars, start, end, hash);
+    if (cached != null) {
+      System.arraycopy(cached, 0, ids, offset, cached.length);
+      return cached.length;
+    }
+    int count = match(chars, start, end, ids, offset);
+    cache.put(chars, start, end, hash, ids, offset, count);
+    return count;
+  }
+
+  /** Greedily matches the longest vocabulary entries in a token, left to right. */
+  int match(char[] chars, int start, int end, int[] ids, int offset) {
+    int count = 0;
+    int pos = start;
+    while (pos < end) {
+      long match = trie.match(chars, pos, end, pos > start);
+      if (match == -1) {
+        ids[offset + count++] = unknownTokenId();
+        break;
+      }
+      ids[offset + count++] = BtTrie.matchId(match);
+      pos = BtTrie.matchEnd(match);
+    }
+    return count;
+  }
+
+  private int unknownTokenId() {
+    if (unknownTokenId == -1) {
+      throw new IllegalStateException("Unknown token is not in the vocabulary: " + unknownToken);
+    }
+    return unknownTokenId;
+  }
+
+  /**
+   * @return the cache this {@link BtWordPiece} looks words up in, or {@code null} if it has none
+   */
+  public BtWordCache getCache() {
+    return cache;
+  }
+
+  /**
+   * @return the compiled vocabulary this {@link BtWordPiece} matches sub-tokens against
+   */
+  public BtTrie getTrie() {
+    return trie;
+  }
+
   @Override
   public String[] tokenize(String sequence) {
     return whitespaceTokenize(sequence)
@@ -0,0 +1,107 @@
+import io.vacco.bertastic.*;
+import j8spec.annotation.DefinedOrder;
+import j8spec.junit.J8SpecRunner;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+
+import static j8spec.J8Spec.*;
+import static org.junit.Assert.*;
+
+@DefinedOrder
+@RunWith(J8SpecRunner.class)
+public class BtBatcherTest {
+
+  /** Encodes a sequence as one inputId per character, and embeds it as its first inputId. Records the size of each batch. */
+  static BtBatcher batcher(BtBatcherOptions options, List<Integer> batches) {
+    return new BtBatcher(
+        sequence -> sequence.chars().toArray(),
+        ids -> {
+          batches.add(ids.length);
+          var rows = new float[ids.length][];
+          for (int i = 0; i < ids.length; i++) {
+            rows[i] = new float[] {ids[i][0]};
+          }
+          return rows;
+        },
+        options
+    );
+  }
+
+  static {
+    it("Sends a partial batch once its oldest request has waited long enough", () -> {
+      var options = new BtBatcherOptions();
+      options.maxWaitMicros = TimeUnit.MILLISECONDS.toMicros(200);
+      var batches = new CopyOnWriteArrayList<Integer>();
+      try (var batcher = batcher(options, batches)) {
+        long start = System.nanoTime();
+        var a = batcher.embedSequence("a");
+        var b = batcher.embedSequence("b");
+        assertArrayEquals(new float[] {'a'}, a.get(5, TimeUnit.SECONDS), 0);
+        assertArrayEquals(new float[] {'b'}, b.get(5, TimeUnit.SECONDS), 0);
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(150));
+        assertEquals(List.of(2), batches);
+      }
+    });
+    it("Carries a request that would exceed the token budget over to the next batch", () -> {
+      var options = new BtBatcherOptions();
+      options.maxBatchTokens = 10; // Two 3-character sequences, plus start and separator tokens
+      options.maxWaitMicros = TimeUnit.MILLISECONDS.toMicros(200);
+      var batches = new CopyOnWriteArrayList<Integer>();
+      try (var batcher = batcher(options, batches)) {
+        var results = new ArrayList<CompletableFuture<float[]>>();
+        for (var sequence : new String[] {"abc", "bcd", "cde", "def", "efg"}) {
+          results.add(batcher.embedSequence(sequence));
+        }
+        for (int i = 0; i < results.size(); i++) {
+          assertArrayEquals(new float[] {'a' + i}, results.get(i).get(5, TimeUnit.SECONDS), 0);
+        }
+        assertEquals(List.of(2, 2, 1), batches);
+      }
+    });
+    it("Rejects requests after it is closed", () -> {
+      var batcher = batcher(new BtBatcherOptions(), new CopyOnWriteArrayList<>());
+      batcher.close();
+      var result = batcher.embedSequence("a");
+      try {
+        result.get(5, TimeUnit.SECONDS);
+        fail("Request after close was accepted");
+      } catch (ExecutionException e) {
+        assertTrue(e.getCause() instanceof RejectedExecutionException);
+      }
+    });
+    it("Completes every request made while it is closing", () -> {
+      var options = new BtBatcherOptions();
+      options.maxWaitMicros = 0;
+      for (int round = 0; round < 50; round++) {
+        var batcher = batcher(options, new CopyOnWriteArrayList<>());
+        var results = new ConcurrentLinkedQueue<CompletableFuture<float[]>>();
+        var callers = new ArrayList<Thread>();
+        for (int t = 0; t < 4; t++) {
+          var caller = new Thread(() -> {
+            for (int i = 0; i < 100; i++) {
+              results.add(batcher.embedSequence("a"));
+            }
+          });
+          caller.start();
+          callers.add(caller);
+        }
+        batcher.close();
+        for (var caller : callers) {
+          caller.join();
+        }
+        for (var result : results) {
+          try {
+            result.get(5, TimeUnit.SECONDS); // Embedded, or else rejected or cancelled, but never left pending
+          } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof RejectedExecutionException);
+          } catch (CancellationException e) {
+            // Queued while the batcher was closing
+          }
+        }
+      }
+    });
+  }
+}
@@ -0,0 +1,119 @@
+import io.vacco.bertastic.*;
+import j8spec.annotation.DefinedOrder;
+import j8spec.junit.J8SpecRunner;
+import org.junit.runner.RunWith;
+
+import java.awt.*;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static j8spec.J8Spec.*;
+import static org.junit.Assert.*;
+
+@DefinedOrder
+@RunWith(J8SpecRunner.class)
+public class BtBulkJobTest {
+
+  static List<String> lines() {
+    var lines = new ArrayList<String>();
+    for (int i = 0; i < 40; i++) {
+      lines.add("Papa Gundam is watching " + "very ".repeat(i % 7) + "closely, line " + i);
+    }
+    return lines;
+  }
+
+  static float[][] rows(File output) throws Exception {
+    var bytes = ByteBuffer.wrap(Files.readAllBytes(output.toPath())).order(ByteOrder.LITTLE_ENDIAN);
+    int dimensions = bytes.getInt(8);
+    var rows = new float[(bytes.limit() - BtBulkJob.HEADER_BYTES) / (dimensions * Float.BYTES)][dimensions];
+    bytes.position(BtBulkJob.HEADER_BYTES);
+    for (var row : rows) {
+      bytes.asFloatBuffer().get(row);
+      bytes.position(bytes.position() + dimensions * Float.BYTES);
+    }
+    return rows;
+  }
+
+  static {
+    it("Keeps padded batches within the token budget", () -> {
+      if (!GraphicsEnvironment.isHeadless()) {
+        var options = new BtSessionOptions();
+        options.padding = BtPadding.BATCH_LONGEST;
+        options.padMultiple = 8;
+        var largest = new AtomicInteger();
+        options.metrics = new BtMetricsListener() {
+          @Override public void onEncode(int sequences, long tokens, int truncated, long nanos) {}
+          @Override public void onBatch(BtBatchStats batch) {
+            largest.accumulateAndGet((int) batch.paddedTokens, Math::max);
+          }
+        };
+        var tmp = BtFileIO.newTempDir();
+        var input = new File(tmp, "input.txt");
+        Files.write(input.toPath(), lines(), StandardCharsets.UTF_8);
+        var bulk = new BtBulkOptions();
+        bulk.maxBatchTokens = 100;
+        try (var bert = BtTestModel.load(options)) {
+          assertEquals(40, new BtBulkJob(bert, bulk).run(input, new File(tmp, "output.bin")));
+        }
+        assertTrue(largest.get() <= 100);
+        BtFileIO.delete(tmp);
+      }
+    });
+    it("Resumes an interrupted job from its checkpoint", () -> {
+      if (!GraphicsEnvironment.isHeadless()) {
+        var tmp = BtFileIO.newTempDir();
+        var input = new File(tmp, "input.txt");
+        var lines = lines();
+        Files.write(input.toPath(), lines, StandardCharsets.UTF_8);
+        var bulk = new BtBulkOptions();
+        bulk.maxBatchTokens = 64;
+        bulk.checkpointBatches = 1;
+        try (var bert = BtTestModel.load(new BtSessionOptions())) {
+          var expected = bert.embedSequences(lines.toArray(new String[0]));
+          var output = new File(tmp, "output.bin");
+          var read = new AtomicInteger();
+          bulk.lineText = line -> {
+            if (read.incrementAndGet() > 25) {
+              throw new IllegalStateException("Interrupted");
+            }
+            return line;
+          };
+          assertThrows(IllegalStateException.class, () -> new BtBulkJob(bert, bulk).run(input, output));
+          int written = rows(output).length;
+          assertTrue(written > 0 && written < 25);
+          bulk.lineText = line -> line;
+          assertEquals(40, new BtBulkJob(bert, bulk).run(input, output));
+          var rows = rows(output);
+          assertEquals(40, rows.length);
+          for (int i = 0; i < rows.length; i++) {
+            assertArrayEquals(expected[i], rows[i], 1e-5f);
+          }
+          assertEquals(40, new BtBulkJob(bert, bulk).run(input, output)); // Already complete
+        }
+        BtFileIO.delete(tmp);
+      }
+    });
+    it("Refuses to resume when the input changed", () -> {
+      if (!GraphicsEnvironment.isHeadless()) {
+        var tmp = BtFileIO.newTempDir();
+        var input = new File(tmp, "input.txt");
+        var lines = lines();
+        Files.write(input.toPath(), lines, StandardCharsets.UTF_8);
+        var output = new File(tmp, "output.bin");
+        try (var bert = BtTestModel.load(new BtSessionOptions())) {
+          new BtBulkJob(bert, new BtBulkOptions()).run(input, output);
+          lines.set(0, lines.get(0).replace('P', 'M')); // Same size
+          Files.write(input.toPath(), lines, StandardCharsets.UTF_8);
+          assertThrows(IllegalStateException.class, () -> new BtBulkJob(bert, new BtBulkOptions()).run(input, output));
+        }
+        BtFileIO.delete(tmp);
+      }
+    });
+  }
+}
@@ -0,0 +1,142 @@
+import io.vacco.bertastic.*;
+import j8spec.annotation.DefinedOrder;
+import j8spec.junit.J8SpecRunner;
+import org.junit.runner.RunWith;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static j8spec.J8Spec.*;
+import static org.junit.Assert.*;
+
+@DefinedOrder
+@RunWith(J8SpecRunner.class)
+public class BtCacheTest {
+
+  static final int DIMENSIONS = 4, ROW_BYTES = DIMENSIONS * Float.BYTES;
+
+  /** A stub model, which records the keys it was asked to compute and embeds each as its text's hash code. */
+  static class Loader {
+    final List<String> loaded = new ArrayList<>();
+
+    float[][] getAll(BtCache cache, String ... keys) {
+      return cache.getAll(keys, missed -> {
+        var rows = new float[missed.length][];
+        for (int i = 0; i < missed.length; i++) {
+          loaded.add(keys[missed[i]]);
+          rows[i] = row(keys[missed[i]]);
+        }
+        return rows;
+      });
+    }
+
+    List<String> loaded(BtCache cache, String ... keys) {
+      loaded.clear();
+      var rows = getAll(cache, keys);
+      for (int i = 0; i < keys.length; i++) {
+        assertArrayEquals(row(keys[i]), rows[i], 0);
+      }
+      return new ArrayList<>(loaded);
+    }
+  }
+
+  static float[] row(String key) {
+    var row = new float[DIMENSIONS];
+    row[0] = key.hashCode();
+    row[DIMENSIONS - 1] = key.length();
+    return row;
+  }
+
+  static String[] keys(String prefix, int count) {
+    var out = new String[count];
+    for (int i = 0; i < count; i++) {
+      out[i] = prefix + i;
+    }
+    return out;
+  }
+
+  static {
+    it("Loads only missing rows, and merges them with cached ones in order", () -> {
+      var cache = new BtCache(BtCache.Key.TEXT, BtCache.Policy.LRU, 100 * ROW_BYTES);
+      var loader = new Loader();
+      assertEquals(List.of("a", "b", "c"), loader.loaded(cache, "a", "b", "c"));
+      assertEquals(List.of("d", "e"), loader.loaded(cache, "c", "d", "a", "e", "b"));
+      assertEquals(List.of(), loader.loaded(cache, "e", "a", "d"));
+      assertEquals(6, cache.hits());
+      assertEquals(5, cache.misses());
+      assertEquals(6.0 / 11, cache.hitRate(), 1e-9);
+      assertEquals(5, cache.size());
+      assertEquals(5 * ROW_BYTES, cache.bytes());
+      assertEquals(0, cache.evictions());
+
+      var rows = loader.getAll(cache, "a");
+      rows[0][0] = 42; // Callers get copies
+      assertArrayEquals(row("a"), loader.getAll(cache, "a")[0], 0);
+    });
+    it("Evicts the least recently used rows once over its byte budget", () -> {
+      var cache = new BtCache(BtCache.Key.TEXT, BtCache.Policy.LRU, 3 * ROW_BYTES, 1);
+      var loader = new Loader();
+      loader.loaded(cache, "a", "b", "c");
+      loader.loaded(cache, "a"); // b is now the least recently used
+      assertEquals(List.of("d"), loader.loaded(cache, "d"));
+      assertEquals(1, cache.evictions());
+      assertEquals(3, cache.size());
+      assertEquals(3 * ROW_BYTES, cache.bytes());
+      assertEquals(List.of(), loader.loaded(cache, "c", "a", "d"));
+      assertEquals(List.of("b"), loader.loaded(cache, "b")); // Evicts c, the least recently used
+      assertEquals(List.of("c"), loader.loaded(cache, "c"));
+      assertEquals(3, cache.evictions());
+      assertEquals(List.of("a"), loader.loaded(cache, "a", "b", "d")); // Evicts c, after the hits on b and d
+      assertEquals(List.of("c"), loader.loaded(cache, "c"));
+    });
+    it("Keeps rows within the budget of each segment", () -> {
+      var loader = new Loader();
+      for (var policy : BtCache.Policy.values()) {
+        var cache = new BtCache(BtCache.Key.TEXT, policy, 64 * ROW_BYTES);
+        loader.loaded(cache, keys("k", 1000));
+        assertTrue(cache.bytes() <= cache.maxBytes);
+        assertEquals(cache.size() * (long) ROW_BYTES, cache.bytes());
+        assertTrue(cache.size() > 32);
+        assertEquals(1000 - cache.size(), cache.evictions());
+      }
+      var tiny = new BtCache(BtCache.Key.TEXT, BtCache.Policy.LRU, ROW_BYTES - 1, 1);
+      loader.loaded(tiny, "a");
+      assertEquals(0, tiny.size()); // A row larger than the whole budget isn't kept
+      assertThrows(IllegalArgumentException.class, () -> new BtCache(BtCache.Key.TEXT, BtCache.Policy.LRU, 1024, 3));
+    });
+    it("Admits new rows over popular ones only when they are requested more often (W-TinyLFU)", () -> {
+      var popular = keys("popular ", 90);
+      var scan = keys("one-off ", 400);
+      for (var policy : BtCache.Policy.values()) {
+        var cache = new BtCache(BtCache.Key.TEXT, policy, 100 * ROW_BYTES, 1);
+        var loader = new Loader();
+        for (int round = 0; round < 4; round++) {
+          loader.loaded(cache, popular);
+        }
+        loader.loaded(cache, scan);
+        int kept = popular.length - loader.loaded(cache, popular).size();
+        if (policy == BtCache.Policy.LRU) {
+          assertEquals(0, kept); // The scan flushed every popular row
+        } else {
+          assertEquals(popular.length, kept);
+        }
+      }
+      var cache = new BtCache(BtCache.Key.TEXT, BtCache.Policy.TINY_LFU, 100 * ROW_BYTES, 1);
+      var loader = new Loader();
+      loader.loaded(cache, popular);
+      for (int round = 0; round < 8; round++) {
+        loader.loaded(cache, "rising");
+      }
+      loader.loaded(cache, keys("one-off ", 20));
+      assertEquals(List.of(), loader.loaded(cache, "rising")); // Requested often enough to take a popular row's place
+    });
+    it("Keys texts by their words, folding ASCII case for lower-casing models", () -> {
+      assertEquals(BtCache.textKey("Papa  Gundam\t", false), BtCache.textKey(" Papa Gundam", false));
+      assertNotEquals(BtCache.textKey("Papa Gundam", false), BtCache.textKey("papa gundam", false));
+      assertEquals(BtCache.textKey("Papa Gundam", true), BtCache.textKey("papa GUNDAM", true));
+      assertNotEquals(BtCache.textKey("Émile", true), BtCache.textKey("émile", true)); // Only ASCII letters fold
+      assertEquals(BtCache.idsKey(new int[] {101, 7, 102}), BtCache.idsKey(new int[] {101, 7, 102}));
+      assertNotEquals(BtCache.idsKey(new int[] {101, 7, 102}), BtCache.idsKey(new int[] {101, 102}));
+    });
+  }
+}
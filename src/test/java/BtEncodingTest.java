@@ -0,0 +1,66 @@
+import io.vacco.bertastic.*;
+import j8spec.annotation.DefinedOrder;
+import j8spec.junit.J8SpecRunner;
+import org.junit.runner.RunWith;
+
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static j8spec.J8Spec.*;
+import static org.junit.Assert.*;
+
+@DefinedOrder
+@RunWith(J8SpecRunner.class)
+public class BtEncodingTest {
+
+  static {
+    it("Finds no duplicates among distinct sequences, even with equal hashes", () -> {
+      assertNull(BtEncoding.of(new int[0][]).firstOccurrences());
+      assertNull(BtEncoding.of(new int[][] {{101, 102}}).firstOccurrences());
+      assertNull(BtEncoding.of(new int[][] {
+          {0, 31}, {1, 0}, // Same 31 * h + id hash
+          {}, {-30},
+          {7}, {7, 0}, {0, 7}
+      }).firstOccurrences());
+    });
+    it("Finds the first occurrence of each duplicate sequence, past hash collisions", () -> {
+      var firstOf = BtEncoding.of(new int[][] {{0, 31}, {1, 0}, {0, 31}, {1, 0}, {}, {-30}, {}, {-30}, {1, 0}}).firstOccurrences();
+      assertArrayEquals(new int[] {0, 1, 0, 1, 4, 5, 4, 5, 1}, firstOf);
+
+      var random = new Random(23);
+      var sequences = new int[3000][];
+      var expected = new int[sequences.length];
+      for (int i = 0; i < sequences.length; i++) {
+        if (i > 0 && random.nextInt(3) == 0) {
+          expected[i] = expected[random.nextInt(i)];
+          sequences[i] = sequences[expected[i]].clone();
+        } else {
+          expected[i] = i;
+          sequences[i] = random.ints(1 + random.nextInt(8), 0, 30522).toArray();
+          sequences[i][0] = i; // Distinct from all earlier ones
+        }
+      }
+      assertArrayEquals(expected, BtEncoding.of(sequences).firstOccurrences());
+    });
+    it("Embeds each distinct input once, and fans its embedding out in input order", () -> {
+      var asked = new AtomicReference<int[]>();
+      var out = BtEncoding.embedDistinct(new int[] {0, 1, 0, 3, 1, 3, 6}, distinct -> {
+        asked.set(distinct);
+        var rows = new float[distinct.length][];
+        for (int i = 0; i < distinct.length; i++) {
+          rows[i] = new float[] {distinct[i], -distinct[i]};
+        }
+        return rows;
+      });
+      assertArrayEquals(new int[] {0, 1, 3, 6}, asked.get());
+      var firsts = new float[] {0, 1, 0, 3, 1, 3, 6};
+      assertEquals(firsts.length, out.length);
+      for (int i = 0; i < out.length; i++) {
+        assertArrayEquals(new float[] {firsts[i], -firsts[i]}, out[i], 0);
+      }
+      assertNotSame(out[0], out[2]); // Duplicates get copies, so callers may modify rows
+      out[2][0] = 99;
+      assertEquals(0, out[0][0], 0);
+    });
+  }
+}
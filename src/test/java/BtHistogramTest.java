@@ -0,0 +1,90 @@
+import io.vacco.bertastic.*;
+import j8spec.annotation.DefinedOrder;
+import j8spec.junit.J8SpecRunner;
+import org.junit.runner.RunWith;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static j8spec.J8Spec.*;
+import static org.junit.Assert.*;
+
+@DefinedOrder
+@RunWith(J8SpecRunner.class)
+public class BtHistogramTest {
+
+  /** @return the upper bound of the bucket a value is counted in, as reported by the median of it and a larger value. */
+  static long upperBound(long value) {
+    var h = new BtHistogram();
+    h.record(value);
+    h.record(Long.MAX_VALUE);
+    return h.percentile(0.5);
+  }
+
+  static {
+    it("Counts small values exactly", () -> {
+      for (long v = 0; v < 8; v++) {
+        assertEquals(v, upperBound(v));
+      }
+      assertEquals(0, upperBound(-5)); // Negative values count as zero
+    });
+    it("Splits each power of two into 4 buckets", () -> {
+      assertEquals(9, upperBound(8));
+      assertEquals(9, upperBound(9));
+      assertEquals(11, upperBound(10));
+      assertEquals(15, upperBound(14));
+      assertEquals(1023, upperBound(896));
+      assertEquals(1279, upperBound(1024));
+      assertEquals(Long.MAX_VALUE, upperBound(Long.MAX_VALUE));
+      assertEquals(Long.MAX_VALUE, upperBound(7L << 60));
+      assertEquals((7L << 60) - 1, upperBound((7L << 60) - 1));
+      for (int exponent = 3; exponent < 63; exponent++) {
+        long lower = 1L << exponent, width = lower / 4;
+        for (int sub = 0; sub < 4; sub++) {
+          long v = lower + sub * width, upper = v + width - 1;
+          assertEquals(upper, upperBound(v));
+          assertEquals(upper, upperBound(upper));
+          assertEquals(v - 1, upperBound(v - 1)); // The previous bucket ends right below
+          assertTrue(upper - v <= v / 4); // Within 25%
+        }
+      }
+    });
+    it("Reports percentiles of a known distribution", () -> {
+      var h = new BtHistogram();
+      assertEquals(0, h.percentile(0.99));
+      assertEquals(0, h.mean(), 0);
+      for (int i = 0; i < 990; i++) {
+        h.record(1000);
+      }
+      for (int i = 0; i < 10; i++) {
+        h.record(1_000_000);
+      }
+      assertEquals(1000, h.count());
+      assertEquals(990 * 1000 + 10 * 1_000_000, h.sum());
+      assertEquals(10_990, h.mean(), 0);
+      assertEquals(1_000_000, h.max());
+      assertEquals(1023, h.percentile(0.5));
+      assertEquals(1023, h.percentile(0.99));
+      assertEquals(1_000_000, h.percentile(0.999)); // Capped at the largest value recorded
+      assertEquals(1_000_000, h.percentile(1));
+      h.reset();
+      assertEquals(0, h.count());
+      assertEquals(0, h.max());
+      assertEquals(0, h.percentile(0.99));
+
+      var random = new Random(20);
+      var values = new long[100_000];
+      for (int i = 0; i < values.length; i++) {
+        values[i] = (long) Math.exp(10 + 2 * random.nextGaussian()); // Latency-like, with a long tail
+        h.record(values[i]);
+      }
+      Arrays.sort(values);
+      for (double q : new double[] {0.5, 0.9, 0.99, 0.999}) {
+        long exact = values[(int) Math.ceil(q * values.length) - 1];
+        long p = h.percentile(q);
+        assertTrue(p >= exact);
+        assertTrue(p <= exact + exact / 4);
+      }
+    });
+  }
+}
@@ -0,0 +1,59 @@
+import io.vacco.bertastic.*;
+import j8spec.annotation.DefinedOrder;
+import j8spec.junit.J8SpecRunner;
+import org.junit.runner.RunWith;
+import org.tensorflow.ndarray.Shape;
+
+import static j8spec.J8Spec.*;
+import static org.junit.Assert.*;
+
+@DefinedOrder
+@RunWith(J8SpecRunner.class)
+public class BtInputPoolTest {
+  static {
+    it("Reuses released inputs of the same shape", () -> {
+      try (var pool = new BtInputPool(2)) {
+        var a = pool.acquire(4, 16);
+        assertEquals(Shape.of(4, 16), a.inputIds.shape());
+        a.close();
+        assertEquals(1, pool.idle());
+        assertSame(a, pool.acquire(4, 16));
+        assertEquals(0, pool.idle());
+        var b = pool.acquire(4, 32); // Another shape gets its own tensors
+        assertNotSame(a, b);
+        assertEquals(Shape.of(4, 32), b.inputIds.shape());
+        var c = pool.acquire(4, 16);
+        assertNotSame(a, c);
+        a.close();
+        b.close();
+        c.close(); // Past the idle limit, so freed
+        assertEquals(2, pool.idle());
+        try (var again = pool.acquire(4, 32)) {
+          assertSame(b, again);
+        }
+      }
+    });
+    it("Frees inputs released after it's closed, and allocates no more", () -> {
+      var pool = new BtInputPool(4);
+      var a = pool.acquire(2, 8);
+      var b = pool.acquire(2, 8);
+      a.close();
+      assertEquals(1, pool.idle());
+      pool.close();
+      assertEquals(0, pool.idle());
+      b.close();
+      assertEquals(0, pool.idle());
+      assertThrows(IllegalStateException.class, () -> pool.acquire(2, 8));
+    });
+    it("Keeps nothing when reuse is disabled", () -> {
+      try (var pool = new BtInputPool(0)) {
+        var a = pool.acquire(1, 8);
+        a.close();
+        assertEquals(0, pool.idle());
+        try (var again = pool.acquire(1, 8)) {
+          assertNotSame(a, again);
+        }
+      }
+    });
+  }
+}
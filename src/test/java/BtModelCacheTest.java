@@ -0,0 +1,78 @@
+import io.vacco.bertastic.*;
+import j8spec.annotation.DefinedOrder;
+import j8spec.junit.J8SpecRunner;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import static j8spec.J8Spec.*;
+import static org.junit.Assert.*;
+
+@DefinedOrder
+@RunWith(J8SpecRunner.class)
+public class BtModelCacheTest {
+
+  static File archive(File dir, String vocab) throws Exception {
+    var zip = new File(dir, "model.zip");
+    try (var out = new ZipOutputStream(new FileOutputStream(zip))) {
+      out.putNextEntry(new ZipEntry("saved_model.pb"));
+      out.write(new byte[] {1, 2, 3});
+      out.closeEntry();
+      out.putNextEntry(new ZipEntry("assets/vocab.txt"));
+      out.write(vocab.getBytes(StandardCharsets.UTF_8));
+      out.closeEntry();
+    }
+    return zip;
+  }
+
+  static {
+    it("Extracts an archive once, and reuses it on later loads", () -> {
+      var tmp = BtFileIO.newTempDir();
+      var cache = new BtModelCache(new File(tmp, "models"));
+      var zip = archive(tmp, "[UNK]\n[CLS]\n[SEP]\nhello\n");
+      var source = cache.get(zip.toURI().toURL());
+      assertFalse(source.deleteOnClose);
+      assertTrue(new File(source.bundleDir, "saved_model.pb").isFile());
+      assertTrue(source.vocabSnapshot.isFile());
+      var marker = new File(source.bundleDir, "marker");
+      assertTrue(marker.createNewFile());
+      assertEquals(source.bundleDir, cache.get(zip.toURI().toURL()).bundleDir);
+      assertTrue(marker.exists());
+      var refs = cache.root.listFiles((dir, name) -> name.endsWith(".ref"));
+      assertEquals(1, refs.length);
+      assertEquals(source.bundleDir.getName(), Files.readString(refs[0].toPath()));
+      BtFileIO.delete(tmp);
+    });
+    it("Extracts an archive again when it changes", () -> {
+      var tmp = BtFileIO.newTempDir();
+      var cache = new BtModelCache(new File(tmp, "models"));
+      var zip = archive(tmp, "[UNK]\n[CLS]\n[SEP]\nhello\n");
+      var first = cache.get(zip.toURI().toURL()).bundleDir;
+      long modified = zip.lastModified();
+      archive(tmp, "[UNK]\n[CLS]\n[SEP]\nworld\n"); // Same size
+      assertTrue(zip.setLastModified(modified + 2000));
+      var second = cache.get(zip.toURI().toURL()).bundleDir;
+      assertNotEquals(first, second);
+      assertEquals("[UNK]\n[CLS]\n[SEP]\nworld\n", Files.readString(new File(second, "assets/vocab.txt").toPath()));
+      BtFileIO.delete(tmp);
+    });
+    it("Removes staging directories abandoned by an earlier extraction", () -> {
+      var tmp = BtFileIO.newTempDir();
+      var cache = new BtModelCache(new File(tmp, "models"));
+      var zip = archive(tmp, "[UNK]\n[CLS]\n[SEP]\nhello\n");
+      var dir = cache.get(zip.toURI().toURL()).bundleDir;
+      BtFileIO.delete(dir);
+      var staging = new File(cache.root, dir.getName() + ".tmp-123");
+      assertTrue(new File(staging, dir.getName()).mkdirs());
+      assertEquals(dir, cache.get(zip.toURI().toURL()).bundleDir);
+      assertTrue(dir.isDirectory());
+      assertFalse(staging.exists());
+      BtFileIO.delete(tmp);
+    });
+  }
+}
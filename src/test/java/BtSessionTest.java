@@ -5,14 +5,41 @@ import j8spec.junit.J8SpecRunner;
 import org.junit.runner.RunWith;
 
 import java.awt.*;
+import java.io.File;
+import java.io.StringReader;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Handler;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+import java.util.logging.SimpleFormatter;
 
 import static j8spec.J8Spec.*;
+import static org.junit.Assert.*;
 
 @DefinedOrder
 @RunWith(J8SpecRunner.class)
 public class BtSessionTest {
+
+  /** Sentences of 3 to 17 words, in no particular order of length. */
+  static String[] sequences(int count) {
+    var out = new String[count];
+    for (int i = 0; i < count; i++) {
+      out[i] = "Papa Gundam is " + "very ".repeat(i * 7 % 15) + "watching, take " + i;
+    }
+    return out;
+  }
+
   static {
     it("Creates BERT embeddings", () -> {
       if (!GraphicsEnvironment.isHeadless()) {
@@ -44,5 +71,430 @@ public class BtSessionTest {
         System.out.println("CI environment, nothing to do.");
       }
     });
+    it("Pads batches to their longest sequence with the same embeddings as the model's maximum length", () -> {
+      if (!GraphicsEnvironment.isHeadless()) {
+        var sequences = sequences(20);
+        var fullMetrics = new BtSessionMetrics();
+        var full = new BtSessionOptions();
+        full.metrics = fullMetrics;
+        var longestMetrics = new BtSessionMetrics();
+        var longest = new BtSessionOptions();
+        longest.padding = BtPadding.BATCH_LONGEST;
+        longest.bucketBatchSize = 4;
+        longest.metrics = longestMetrics;
+        float[][] expected;
+        try (var bert = BtTestModel.load(full)) {
+          expected = bert.embedSequences(sequences);
+        }
+        try (var bert = BtTestModel.load(longest)) {
+          var padded = bert.embedSequences(sequences);
+          for (int i = 0; i < sequences.length; i++) {
+            assertArrayEquals(expected[i], padded[i], 1e-4f); // In input order, though batches ran sorted by length
+          }
+        }
+        assertEquals(1, fullMetrics.getBatches());
+        assertEquals(5, longestMetrics.getBatches());
+        assertEquals(fullMetrics.getRealTokens(), longestMetrics.getRealTokens());
+        assertTrue(longestMetrics.getPaddedTokens() < fullMetrics.getPaddedTokens());
+      }
+    });
+    it("Returns the same embeddings from the cache as from the model", () -> {
+      if (!GraphicsEnvironment.isHeadless()) {
+        var sequences = sequences(12);
+        float[][] expected;
+        try (var bert = BtTestModel.load(new BtSessionOptions())) {
+          expected = bert.embedSequences(sequences);
+        }
+        for (var key : BtCache.Key.values()) {
+          var metrics = new BtSessionMetrics();
+          var options = new BtSessionOptions();
+          options.cache = new BtCache(key, BtCache.Policy.TINY_LFU, 1 << 20);
+          options.metrics = metrics;
+          try (var bert = BtTestModel.load(options)) {
+            var first = bert.embedSequences(Arrays.copyOfRange(sequences, 0, 8));
+            long batches = metrics.getBatches();
+            var again = sequences.clone();
+            again[3] = "  " + again[3].toUpperCase() + " "; // The same text to a lower-casing model
+            var second = bert.embedSequences(again);
+            for (int i = 0; i < sequences.length; i++) {
+              assertArrayEquals(expected[i], second[i], 1e-4f);
+              if (i < first.length) {
+                assertArrayEquals(expected[i], first[i], 1e-4f);
+              }
+            }
+            assertEquals(8, options.cache.hits());
+            assertEquals(12, options.cache.misses());
+            assertEquals(batches + 1, metrics.getBatches());
+            assertEquals(12, metrics.batchSizes.sum()); // Only misses reach the model
+          }
+        }
+      }
+    });
+    it("Copies pooled embeddings into caller buffers, and views them in place", () -> {
+      if (!GraphicsEnvironment.isHeadless()) {
+        var sequences = sequences(10);
+        var options = new BtSessionOptions();
+        options.padding = BtPadding.BATCH_LONGEST;
+        options.bucketBatchSize = 4;
+        try (var bert = BtTestModel.load(options)) {
+          var expected = bert.embedSequences(sequences);
+          int dimensions = expected[0].length;
+          var floats = FloatBuffer.allocate(3 + sequences.length * dimensions);
+          floats.position(3);
+          bert.embedSequences(floats, sequences);
+          assertEquals(floats.capacity(), floats.position());
+          var direct = ByteBuffer.allocateDirect(8 + sequences.length * dimensions * Float.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+          direct.position(8);
+          bert.embedSequences(direct, sequences);
+          assertEquals(direct.capacity(), direct.position());
+          int offset = 5, stride = dimensions + 2;
+          var strided = new float[offset + sequences.length * stride];
+          bert.embedSequences(strided, offset, stride, sequences);
+          try (var view = bert.viewSequences(sequences)) {
+            assertEquals(sequences.length, view.sequences());
+            assertEquals(1, view.tokens());
+            assertEquals(dimensions, view.dimensions());
+            for (int i = 0; i < sequences.length; i++) {
+              var row = new float[dimensions];
+              floats.duplicate().position(3 + i * dimensions).get(row);
+              assertArrayEquals(expected[i], row, 1e-4f);
+              direct.duplicate().order(ByteOrder.LITTLE_ENDIAN).position(8 + i * dimensions * Float.BYTES).asFloatBuffer().get(row);
+              assertArrayEquals(expected[i], row, 1e-4f);
+              assertArrayEquals(expected[i], Arrays.copyOfRange(strided, offset + i * stride, offset + i * stride + dimensions), 1e-4f);
+              view.read(i, 0, row, 0);
+              assertArrayEquals(expected[i], row, 1e-4f);
+              assertEquals(expected[i][dimensions - 1], view.get(i, dimensions - 1), 1e-4f);
+            }
+            view.close();
+            assertThrows(IllegalStateException.class, () -> view.get(0, 0));
+            assertThrows(IllegalStateException.class, () -> view.read(0, 0, new float[dimensions], 0));
+          } // Closing twice is harmless
+          assertThrows(BufferOverflowException.class, () -> bert.embedSequences(FloatBuffer.allocate(dimensions), sequences));
+        }
+      }
+    });
+    it("Copies token embeddings into caller buffers, and views them in place", () -> {
+      if (!GraphicsEnvironment.isHeadless()) {
+        var sequences = sequences(3);
+        try (var bert = BtTestModel.load(new BtSessionOptions())) {
+          var expected = bert.embedTokens(sequences);
+          int tokens = expected[0].length, dimensions = expected[0][0].length, rows = sequences.length * tokens;
+          var floats = FloatBuffer.allocate(rows * dimensions);
+          bert.embedTokens(floats, sequences);
+          var direct = ByteBuffer.allocateDirect(4 + rows * dimensions * Float.BYTES).order(ByteOrder.LITTLE_ENDIAN);
+          direct.position(4);
+          bert.embedTokens(direct, sequences);
+          assertEquals(direct.capacity(), direct.position());
+          var values = direct.duplicate().order(ByteOrder.LITTLE_ENDIAN).position(4).slice().order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+          int offset = 7, stride = dimensions + 1;
+          var strided = new float[offset + rows * stride];
+          bert.embedTokens(strided, offset, stride, sequences);
+          try (var view = bert.viewTokens(sequences)) {
+            assertEquals(tokens, view.tokens());
+            var row = new float[dimensions];
+            for (int i = 0; i < sequences.length; i++) {
+              for (int t = 0; t < tokens; t++) {
+                int r = i * tokens + t;
+                for (int d = 0; d < dimensions; d++) {
+                  float e = expected[i][t][d];
+                  assertEquals(e, floats.get(r * dimensions + d), 1e-4f);
+                  assertEquals(e, values.get(r * dimensions + d), 1e-4f);
+                  assertEquals(e, strided[offset + r * stride + d], 1e-4f);
+                  assertEquals(e, view.get(i, t, d), 1e-4f);
+                }
+                view.read(i, t, row, 0);
+                assertArrayEquals(expected[i][t], row, 1e-4f);
+              }
+            }
+          }
+        }
+      }
+    });
+    it("Pools token embeddings under the input mask", () -> {
+      if (!GraphicsEnvironment.isHeadless()) {
+        var sequences = sequences(12);
+        var tokenizer = new BtFull(BtTestModel.source().vocabFile, true);
+        var options = new BtSessionOptions();
+        options.padding = BtPadding.BATCH_LONGEST;
+        options.bucketBatchSize = 5;
+        try (var bert = BtTestModel.load(options)) {
+          var cls = bert.embedSequences(sequences);
+          var mean = bert.embedSequences(BtPooling.MEAN, sequences);
+          var max = bert.embedSequences(BtPooling.MAX, sequences);
+          var combined = bert.embedSequences(new BtPooling[] {BtPooling.MAX, BtPooling.CLS, BtPooling.MEAN}, sequences);
+          var tokens = bert.embedTokens(sequences);
+          for (int i = 0; i < sequences.length; i++) {
+            int masked = Math.min(tokenizer.encode(sequences[i]).length + 2, tokens[i].length); // With [CLS] and [SEP]
+            int dimensions = tokens[i][0].length;
+            var expectedMean = new float[dimensions];
+            var expectedMax = tokens[i][0].clone();
+            for (int t = 0; t < masked; t++) {
+              for (int d = 0; d < dimensions; d++) {
+                expectedMean[d] += tokens[i][t][d] / masked;
+                expectedMax[d] = Math.max(expectedMax[d], tokens[i][t][d]);
+              }
+            }
+            assertArrayEquals(expectedMean, mean[i], 1e-4f);
+            assertArrayEquals(expectedMax, max[i], 1e-4f);
+            assertEquals(2 * dimensions + cls[i].length, combined[i].length);
+            assertArrayEquals(expectedMax, Arrays.copyOfRange(combined[i], 0, dimensions), 1e-4f);
+            assertArrayEquals(cls[i], Arrays.copyOfRange(combined[i], dimensions, dimensions + cls[i].length), 1e-4f);
+            assertArrayEquals(expectedMean, Arrays.copyOfRange(combined[i], dimensions + cls[i].length, combined[i].length), 1e-4f);
+          }
+        }
+      }
+    });
+    it("Pipelines chunks in input order, reading at most a few chunks ahead", () -> {
+      if (!GraphicsEnvironment.isHeadless()) {
+        var sequences = sequences(50);
+        var pipeline = new BtPipelineOptions();
+        pipeline.chunkSize = 7;
+        pipeline.depth = 2;
+        var read = new AtomicInteger();
+        var input = Arrays.stream(sequences).peek(x -> read.incrementAndGet()).iterator();
+        var rows = new ArrayList<float[]>();
+        var chunks = new ArrayList<Integer>();
+        try (var bert = BtTestModel.load(new BtSessionOptions())) {
+          var expected = bert.embedSequences(sequences);
+          bert.embedSequences(input, pipeline, chunk -> {
+            assertTrue(read.get() <= (chunks.size() + 2 * pipeline.depth) * pipeline.chunkSize);
+            chunks.add(chunk.length);
+            rows.addAll(Arrays.asList(chunk));
+          });
+          assertEquals(List.of(7, 7, 7, 7, 7, 7, 7, 1), chunks);
+          for (int i = 0; i < sequences.length; i++) {
+            assertArrayEquals(expected[i], rows.get(i), 1e-4f);
+          }
+        }
+      }
+    });
+    it("Stops a pipeline on the first failure, after finishing the work in flight", () -> {
+      if (!GraphicsEnvironment.isHeadless()) {
+        var sequences = sequences(40);
+        var pipeline = new BtPipelineOptions();
+        pipeline.chunkSize = 4;
+        var options = new BtSessionOptions();
+        options.inputPoolSize = 1;
+        try (var bert = BtTestModel.load(options)) {
+          var failure = new IllegalStateException("Consumer failed");
+          var consumed = new AtomicInteger();
+          var read = new AtomicInteger();
+          var input = Arrays.stream(sequences).peek(x -> read.incrementAndGet()).iterator();
+          var thrown = assertThrows(IllegalStateException.class, () -> bert.embedSequences(input, pipeline, chunk -> {
+            if (consumed.incrementAndGet() == 2) {
+              throw failure;
+            }
+          }));
+          assertSame(failure, thrown);
+          assertEquals(2, consumed.get());
+          assertTrue(read.get() <= (2 + 2 * pipeline.depth) * pipeline.chunkSize);
+
+          var broken = sequences.clone();
+          broken[21] = null; // Fails to tokenize
+          consumed.set(0);
+          assertThrows(NullPointerException.class,
+              () -> bert.embedSequences(Arrays.asList(broken).iterator(), pipeline, chunk -> consumed.incrementAndGet()));
+          assertTrue(consumed.get() <= 21 / pipeline.chunkSize);
+
+          var expected = bert.embedSequences(sequences);
+          var rows = new ArrayList<float[]>(); // The session and its pooled inputs still work
+          bert.embedSequences(Arrays.asList(sequences).iterator(), pipeline, chunk -> rows.addAll(Arrays.asList(chunk)));
+          assertEquals(sequences.length, rows.size());
+          for (int i = 0; i < sequences.length; i++) {
+            assertArrayEquals(expected[i], rows.get(i), 1e-4f);
+          }
+        }
+      }
+    });
+    it("Warms up the configured shapes without changing embeddings", () -> {
+      if (!GraphicsEnvironment.isHeadless()) {
+        var sequences = sequences(12);
+        float[][] expected;
+        try (var bert = BtTestModel.load(new BtSessionOptions())) {
+          expected = bert.embedSequences(sequences);
+        }
+        var messages = new ArrayList<String>();
+        var logger = Logger.getLogger(BtSession.class.getName());
+        var handler = new Handler() {
+          @Override public void publish(LogRecord record) {
+            messages.add(new SimpleFormatter().formatMessage(record));
+          }
+          @Override public void flush() {}
+          @Override public void close() {}
+        };
+        logger.addHandler(handler);
+        var options = new BtSessionOptions();
+        options.padding = BtPadding.BATCH_LONGEST;
+        options.warmupShapes = new int[][] {{1, 16}, {4, 20}, {1000, 8}};
+        try (var bert = BtTestModel.load(options)) {
+          var embeddings = bert.embedSequences(sequences);
+          for (int i = 0; i < sequences.length; i++) {
+            assertArrayEquals(expected[i], embeddings[i], 1e-4f);
+          }
+        } finally {
+          logger.removeHandler(handler);
+        }
+        assertEquals(3, messages.size());
+        assertTrue(messages.get(0).startsWith("Warmed up batch shape 1x16 in "));
+        assertTrue(messages.get(1).startsWith("Warmed up batch shape 4x24 in ")); // Padded to a multiple of 8
+        assertTrue(messages.get(2).startsWith("Warmed up batch shape 1000x8 in ")); // Not grouped as 1,000
+        options.warmupShapes = new int[][] {{0, 4}};
+        assertThrows(IllegalArgumentException.class, () -> BtTestModel.load(options));
+      }
+    });
+    it("Rejects document windows that would skip tokens", () -> {
+      if (!GraphicsEnvironment.isHeadless()) {
+        try (var bert = BtTestModel.load(new BtSessionOptions())) {
+          var windowing = new BtWindowOptions();
+          windowing.windowTokens = 4;
+          windowing.stride = 5;
+          assertThrows(IllegalArgumentException.class, () -> bert.embedDocuments(windowing, "Papa Gundam is watching..."));
+          windowing.stride = 4;
+          assertEquals(1, bert.embedDocuments(windowing, "Papa Gundam is watching...").length);
+        }
+      }
+    });
+    it("Runs duplicate inputs once under every pooling", () -> {
+      if (!GraphicsEnvironment.isHeadless()) {
+        var metrics = new BtSessionMetrics();
+        var options = new BtSessionOptions();
+        options.deduplicate = true;
+        options.metrics = metrics;
+        var pooling = new BtPooling[] {BtPooling.CLS, BtPooling.MEAN};
+        try (var bert = BtTestModel.load(options)) {
+          var pooled = bert.embedSequences(pooling, "Papa Gundam", "is watching", "PAPA GUNDAM", "Papa Gundam");
+          assertEquals(2, metrics.getDuplicateSequences()); // Equal after lower-casing
+          var distinct = bert.embedSequences(pooling, "Papa Gundam", "is watching");
+          assertArrayEquals(distinct[0], pooled[0], 1e-6f);
+          assertArrayEquals(distinct[1], pooled[1], 1e-6f);
+          assertArrayEquals(distinct[0], pooled[2], 1e-6f);
+          assertArrayEquals(distinct[0], pooled[3], 1e-6f);
+          var windowing = new BtWindowOptions();
+          windowing.windowTokens = 2;
+          windowing.stride = 2;
+          bert.embedDocuments(windowing, "papa gundam papa gundam");
+          assertEquals(3, metrics.getDuplicateSequences());
+        }
+        options = new BtSessionOptions(); // Off by default
+        options.metrics = metrics = new BtSessionMetrics();
+        try (var bert = BtTestModel.load(options)) {
+          bert.embedSequences(pooling, "Papa Gundam", "Papa Gundam");
+          assertEquals(0, metrics.getDuplicateSequences());
+          assertEquals(2, metrics.batchSizes.sum());
+        }
+      }
+    });
+    it("Embeds ragged sub-tokens and words like the padded token embeddings", () -> {
+      if (!GraphicsEnvironment.isHeadless()) {
+        var sequences = new String[] {"Papa Gundam is watching...", "Hi", "The quick brown fox jumps over unaffable dogs"};
+        var tokenizer = new BtFull(BtTestModel.source().vocabFile, true);
+        for (var padding : BtPadding.values()) {
+          var options = new BtSessionOptions();
+          options.padding = padding;
+          try (var bert = BtTestModel.load(options)) {
+            var padded = bert.embedTokens(sequences);
+            var ragged = bert.embedTokensRagged(sequences);
+            var words = bert.embedWords(BtPooling.MEAN, sequences);
+            assertEquals(sequences.length, ragged.size());
+            assertNull(ragged.words);
+            for (int i = 0; i < sequences.length; i++) {
+              int length = tokenizer.encode(sequences[i]).length;
+              assertEquals(length, ragged.length(i));
+              for (int r = 0; r < length; r++) {
+                assertArrayEquals(padded[i][r + 1], ragged.row(i, r), 1e-5f); // Past the start token
+              }
+              var expectedWords = new ArrayList<String>();
+              var encoded = tokenizer.encodeWords(sequences[i], expectedWords);
+              assertArrayEquals(expectedWords.toArray(), words.words[i]);
+              assertEquals(encoded.size(), words.length(i));
+              for (int w = 0; w < encoded.size(); w++) {
+                var mean = new float[ragged.dimensions];
+                for (int r = encoded.offset(w); r < encoded.offset(w + 1); r++) {
+                  var row = ragged.row(i, r);
+                  for (int d = 0; d < mean.length; d++) {
+                    mean[d] += row[d] / encoded.length(w);
+                  }
+                }
+                assertArrayEquals(mean, words.row(i, w), 1e-5f);
+              }
+            }
+          }
+        }
+      }
+    });
+    it("Refuses to fork sessions over a model without saved variables", () -> {
+      if (!GraphicsEnvironment.isHeadless()) {
+        var dir = BtFileIO.newTempDir();
+        BtFileIO.unzip(BtTestModel.archive(), dir);
+        assertTrue(new File(dir, "variables/variables.index").delete());
+        assertThrows(IllegalStateException.class,
+            () -> BtSessionPool.load(BtModelSource.from(dir), new Gson()::fromJson, new BtSessionOptions(), 2));
+        assertFalse(dir.exists());
+      }
+    });
+    it("Returns the same embeddings from pooled sessions as from a single one", () -> {
+      if (!GraphicsEnvironment.isHeadless()) {
+        var sequences = sequences(24);
+        float[][] expected;
+        try (var bert = BtTestModel.load(new BtSessionOptions())) {
+          expected = bert.embedSequences(sequences);
+        }
+        var pool = BtSessionPool.load(BtTestModel.source(), new Gson()::fromJson, new BtSessionOptions(), 3);
+        var threads = Executors.newFixedThreadPool(6);
+        try {
+          var results = new ArrayList<Future<float[]>>();
+          for (int round = 0; round < 4; round++) {
+            for (var sequence : sequences) {
+              results.add(threads.submit(() -> pool.embedSequence(sequence)));
+            }
+          }
+          for (int i = 0; i < results.size(); i++) {
+            assertArrayEquals(expected[i % sequences.length], results.get(i).get(), 1e-4f);
+          }
+          assertEquals(results.size(), pool.calls());
+
+          var borrowed = new CountDownLatch(1);
+          var release = new CountDownLatch(1);
+          var running = threads.submit(() -> pool.apply(session -> {
+            borrowed.countDown();
+            try {
+              release.await();
+            } catch (InterruptedException e) {
+              throw new IllegalStateException(e);
+            }
+            return session.embedSequence(sequences[0]);
+          }));
+          borrowed.await();
+          var closing = threads.submit(pool::close);
+          Thread.sleep(200);
+          assertFalse(closing.isDone()); // Waits for the borrowed session
+          release.countDown();
+          assertArrayEquals(expected[0], running.get(), 1e-4f);
+          closing.get();
+          assertThrows(IllegalStateException.class, () -> pool.embedSequence(sequences[0]));
+          pool.close();
+        } finally {
+          threads.shutdown();
+          pool.close();
+        }
+      }
+    });
+    it("Closes the reader under a stream of embeddings", () -> {
+      if (!GraphicsEnvironment.isHeadless()) {
+        var closed = new AtomicBoolean();
+        var lines = new StringReader("Papa Gundam\nis watching...\n") {
+          @Override public void close() {
+            closed.set(true);
+            super.close();
+          }
+        };
+        try (var bert = BtTestModel.load(new BtSessionOptions())) {
+          try (var embeddings = bert.streamSequences(lines, 512)) {
+            assertEquals(2, embeddings.count());
+          }
+          assertTrue(closed.get());
+        }
+      }
+    });
   }
 }
@@ -0,0 +1,29 @@
+import com.google.gson.Gson;
+import io.vacco.bertastic.*;
+
+import java.net.URL;
+
+/** The easy-bert test model, shared by the specs that run it. */
+public class BtTestModel {
+
+  private static BtModelCache cache;
+
+  static URL archive() {
+    return BtTestModel.class.getResource("/com/robrua/nlp/easy-bert/bert-uncased-L-12-H-768-A-12");
+  }
+
+  /** Extracts the test model into a temporary cache, which is removed when the tests finish. */
+  static synchronized BtModelSource source() throws Exception {
+    if (cache == null) {
+      var root = BtFileIO.newTempDir();
+      Runtime.getRuntime().addShutdownHook(new Thread(() -> BtFileIO.delete(root)));
+      cache = new BtModelCache(root);
+    }
+    return cache.get(archive());
+  }
+
+  static BtSession load(BtSessionOptions options) throws Exception {
+    return BtSession.load(source(), new Gson()::fromJson, options);
+  }
+
+}
@@ -0,0 +1,130 @@
+import io.vacco.bertastic.*;
+import j8spec.annotation.DefinedOrder;
+import j8spec.junit.J8SpecRunner;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.IntBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import static j8spec.J8Spec.*;
+import static org.junit.Assert.*;
+
+@DefinedOrder
+@RunWith(J8SpecRunner.class)
+public class BtTokenizerTest {
+
+  static File vocabFile() throws Exception {
+    var f = File.createTempFile("bertastic-vocab-", ".txt");
+    f.deleteOnExit();
+    Files.write(f.toPath(), List.of(
+        "[PAD]", "[UNK]", "[CLS]", "[SEP]", "un", "##aff", "##able", "want", "##ed",
+        "runn", "##ing", ",", "!", "hello", "cafe", "東", "京", "papa", "gundam", "is", "watch", "."
+    ), StandardCharsets.UTF_8);
+    return f;
+  }
+
+  static {
+    it("Splits text into basic tokens", () -> {
+      var basic = new BtBasic(true);
+      assertArrayEquals(new String[] {"hello", "!", "how", "are", "u", "?"}, basic.tokenize(" \tHeLLo!how  \n Are U?  "));
+      assertArrayEquals(new String[] {"cafe", "東", "京", "naive"}, basic.tokenize("Café東京 naïve"));
+      assertArrayEquals(new String[] {"Café", "東", "京"}, new BtBasic(false).tokenize("Café\u200B東京"));
+      assertArrayEquals(new String[] {""}, basic.tokenize(" \u0000 "));
+    });
+    it("Splits basic tokens into WordPiece sub-tokens", () -> {
+      var wp = new BtWordPiece(Map.of("[UNK]", 0, "want", 1, "##want", 2, "##ed", 3, "un", 4, "runn", 5, "##ing", 6));
+      assertArrayEquals(new String[] {"un", "##want", "##ed", "runn", "##ing", "[UNK]"}, wp.tokenize("unwanted running xyz"));
+      var ids = new int[8];
+      assertEquals(3, wp.splitToken("unwanted".toCharArray(), 0, 8, ids, 0));
+      assertArrayEquals(new int[] {4, 2, 3}, new int[] {ids[0], ids[1], ids[2]});
+    });
+    it("Tokenizes text with the full tokenizer", () -> {
+      var full = new BtFull(vocabFile(), true);
+      var tokens = full.tokenize("Papa Gundam is watching...");
+      assertArrayEquals(new String[] {"papa", "gundam", "is", "watch", "##ing", ".", ".", "."}, tokens);
+      assertArrayEquals(new int[] {17, 18, 19, 20, 10, 21, 21, 21}, full.convert(tokens));
+      assertArrayEquals(full.convert(tokens), full.encode("Papa Gundam is watching..."));
+      var buf = IntBuffer.allocate(4);
+      assertEquals(8, full.encode("Papa Gundam is watching...", buf));
+      assertEquals(4, buf.position());
+    });
+    it("Encodes sequences longer than earlier ones on the same thread", () -> {
+      var full = new BtFull(vocabFile(), true);
+      var sentence = "Papa Gundam is watching... ";
+      var encoded = new int[2][];
+      var thread = new Thread(() -> {
+        encoded[0] = full.encode(sentence);
+        encoded[1] = full.encode(sentence.repeat(100)); // 800 inputIds, past the initial scratch capacity
+      });
+      thread.start();
+      thread.join();
+      var expected = new int[800];
+      for (int i = 0; i < expected.length; i++) {
+        expected[i] = encoded[0][i % encoded[0].length];
+      }
+      assertArrayEquals(expected, encoded[1]);
+    });
+    it("Tokenizes text with a mapped vocabulary snapshot", () -> {
+      var vocab = vocabFile();
+      var snapshot = File.createTempFile("bertastic-vocab-", ".btv");
+      snapshot.deleteOnExit();
+      BtFull.compileVocabulary(vocab, snapshot);
+      var mapped = new BtFull(BtTrie.map(snapshot), true);
+      assertArrayEquals(new BtFull(vocab, true).encode("Papa Gundam is watching... unaffable!"),
+          mapped.encode("Papa Gundam is watching... unaffable!"));
+      assertArrayEquals(new int[] {2, 3}, mapped.convert(new String[] {"[CLS]", "[SEP]"}));
+      var corrupt = File.createTempFile("bertastic-vocab-", ".btv");
+      corrupt.deleteOnExit();
+      var bytes = Files.readAllBytes(snapshot.toPath());
+      bytes[16] ^= 1; // The ## node in the header
+      Files.write(corrupt.toPath(), bytes);
+      assertThrows(IOException.class, () -> BtTrie.map(corrupt));
+    });
+    it("Encodes a batch of sequences into flat arrays", () -> {
+      var full = new BtFull(vocabFile(), true);
+      var sequences = new String[] {"Papa Gundam is watching...", "", "unaffable!"};
+      var encoding = full.encodeBatch(sequences);
+      assertEquals(3, encoding.size());
+      for (int i = 0; i < sequences.length; i++) {
+        assertArrayEquals(full.encode(sequences[i]), encoding.ids(i));
+        assertArrayEquals(full.tokenize(sequences[i]), encoding.tokens(i));
+      }
+      assertArrayEquals(new int[] {17, 18}, encoding.truncate(2).ids(0));
+      assertEquals(2, encoding.truncate(2).length(2));
+    });
+    it("Encodes the sub-tokens of each basic word", () -> {
+      var full = new BtFull(vocabFile(), true);
+      var words = new ArrayList<String>();
+      var encoding = full.encodeWords("Papa Gundam is watching... unaffable!", words);
+      assertEquals(words.size(), encoding.size());
+      assertEquals("unaffable", words.get(words.size() - 2));
+      assertArrayEquals(full.encode("Papa Gundam is watching... unaffable!"), Arrays.copyOf(encoding.ids, encoding.totalLength()));
+      for (int i = 0; i < words.size(); i++) {
+        assertArrayEquals(full.encode(words.get(i)), encoding.ids(i));
+      }
+    });
+    it("Shares a cache of split words between tokenizers over the same vocabulary", () -> {
+      var full = new BtFull(vocabFile(), true);
+      var other = new BtFull(vocabFile(), true);
+      var cache = full.getWordCache();
+      assertSame(cache, other.getWordCache());
+      var plain = new BtWordPiece(full.getVocabulary());
+      long hits = cache.hits();
+      var ids = new int[8];
+      for (var word : new String[] {"unaffable", "running", "hello", "unaffable", "xyz"}) {
+        var expected = new int[8];
+        int count = plain.splitToken(word.toCharArray(), 0, word.length(), expected, 0);
+        assertEquals(count, new BtWordPiece(full.getVocabulary(), cache).splitToken(word.toCharArray(), 0, word.length(), ids, 0));
+        assertArrayEquals(Arrays.copyOf(expected, count), Arrays.copyOf(ids, count));
+      }
+      assertTrue(cache.hits() >= hits + 2); // "hello" was prewarmed from the vocabulary, "unaffable" cached on first use
+    });
+  }
+}
@@ -0,0 +1,176 @@
+import io.vacco.bertastic.*;
+import j8spec.annotation.DefinedOrder;
+import j8spec.junit.J8SpecRunner;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+import static j8spec.J8Spec.*;
+import static org.junit.Assert.*;
+
+@DefinedOrder
+@RunWith(J8SpecRunner.class)
+public class BtVectorIndexTest {
+
+  static float[][] vectors(int count, int dimensions, long seed) {
+    var random = new Random(seed);
+    var out = new float[count][dimensions];
+    for (var v : out) {
+      for (int i = 0; i < dimensions; i++) {
+        v[i] = (float) random.nextGaussian();
+      }
+    }
+    return out;
+  }
+
+  /** Scores every stored vector against the query, and ranks them best first, lower ids first on ties. */
+  static int[] bruteForce(BtVectorIndex index, float[] query, float[] scores) {
+    var q = index.metric == BtVectorIndex.Metric.COSINE ? BtVectors.normalize(query.clone()) : query;
+    for (int id = 0; id < index.size(); id++) {
+      scores[id] = BtVectors.dot(q, index.get(id));
+    }
+    return IntStream.range(0, index.size()).boxed()
+        .sorted(Comparator.<Integer>comparingDouble(id -> -scores[id]).thenComparingInt(id -> id))
+        .mapToInt(Integer::intValue).toArray();
+  }
+
+  static void assertRanked(BtVectorIndex index, float[] query, int k, float delta) {
+    var scores = new float[index.size()];
+    var expected = bruteForce(index, query, scores);
+    var hits = index.search(query, k);
+    assertEquals(Math.min(k, index.size()), hits.length);
+    for (int i = 0; i < hits.length; i++) {
+      assertEquals(scores[expected[i]], hits[i].score, delta);
+      if (delta == 0) {
+        assertEquals(expected[i], hits[i].id);
+      } else { // Quantized scores may swap near-ties, but never rank a clearly worse vector in
+        assertTrue(scores[hits[i].id] >= scores[expected[hits.length - 1]] - 2 * delta);
+      }
+      if (i > 0) {
+        assertTrue(hits[i - 1].score >= hits[i].score);
+      }
+    }
+  }
+
+  static void assertSameHits(BtVectorIndex expected, BtVectorIndex actual, float[] query, int k) {
+    var e = expected.search(query, k);
+    var a = actual.search(query, k);
+    assertEquals(e.length, a.length);
+    for (int i = 0; i < e.length; i++) {
+      assertEquals(e[i].id, a[i].id);
+      assertEquals(e[i].score, a[i].score, 0);
+    }
+  }
+
+  static {
+    it("Ranks float32 vectors like a brute-force scan", () -> {
+      var data = vectors(500, 16, 1);
+      for (var metric : BtVectorIndex.Metric.values()) {
+        var index = new BtVectorIndex(16, metric, BtVectorIndex.Storage.FLOAT32);
+        index.addAll(data);
+        for (var query : vectors(20, 16, 2)) {
+          assertRanked(index, query, 10, 0);
+        }
+      }
+    });
+    it("Ranks int8 vectors like a brute-force scan over their dequantized values", () -> {
+      var index = new BtVectorIndex(16, BtVectorIndex.Metric.COSINE, BtVectorIndex.Storage.INT8);
+      index.addAll(vectors(500, 16, 3));
+      for (var query : vectors(20, 16, 4)) {
+        assertRanked(index, query, 10, 1e-4f);
+      }
+    });
+    it("Returns every vector when k is larger than the index", () -> {
+      var index = new BtVectorIndex(8, BtVectorIndex.Metric.DOT, BtVectorIndex.Storage.FLOAT32);
+      assertEquals(0, index.search(new float[8], 5).length);
+      index.addAll(vectors(3, 8, 5));
+      var query = vectors(1, 8, 6)[0];
+      assertRanked(index, query, 100, 0);
+      var ids = Arrays.stream(index.search(query, 100)).mapToInt(h -> h.id).sorted().toArray();
+      assertArrayEquals(new int[] {0, 1, 2}, ids);
+      assertEquals(0, index.search(query, 0).length);
+    });
+    it("Breaks ties by id", () -> {
+      var index = new BtVectorIndex(4, BtVectorIndex.Metric.DOT, BtVectorIndex.Storage.FLOAT32);
+      var v = new float[] {1, 2, 3, 4};
+      index.add(new float[] {-1, -1, -1, -1});
+      for (int i = 0; i < 6; i++) {
+        index.add(v);
+      }
+      var hits = index.search(v, 4);
+      assertArrayEquals(new int[] {1, 2, 3, 4}, Arrays.stream(hits).mapToInt(h -> h.id).toArray());
+    });
+    it("Saves an index and maps it back with the same search results", () -> {
+      var tmp = BtFileIO.newTempDir();
+      var data = vectors(300, 16, 8);
+      var extra = vectors(5, 16, 9);
+      var queries = vectors(10, 16, 10);
+      for (var storage : BtVectorIndex.Storage.values()) {
+        for (var metric : BtVectorIndex.Metric.values()) {
+          var index = new BtVectorIndex(16, metric, storage);
+          index.addAll(data);
+          var file = new File(tmp, storage + "-" + metric + ".idx");
+          index.write(file);
+          var mapped = BtVectorIndex.map(file);
+          assertEquals(16, mapped.dimensions);
+          assertEquals(metric, mapped.metric);
+          assertEquals(storage, mapped.storage);
+          assertEquals(index.size(), mapped.size());
+          for (int id = 0; id < index.size(); id += 37) {
+            assertArrayEquals(index.get(id), mapped.get(id), 0);
+          }
+          for (var query : queries) {
+            assertSameHits(index, mapped, query, 10);
+          }
+          index.addAll(extra);
+          mapped.addAll(extra);
+          assertEquals(305, mapped.size());
+          for (var query : queries) {
+            assertSameHits(index, mapped, query, 10);
+          }
+          assertRanked(mapped, extra[2], 10, storage == BtVectorIndex.Storage.FLOAT32 ? 0 : 1e-4f); // Over mapped and added rows
+          assertEquals(300, BtVectorIndex.map(file).size()); // Added vectors stay in memory until written again
+          var again = new File(tmp, storage + "-" + metric + "-again.idx");
+          mapped.write(again);
+          assertSameHits(index, BtVectorIndex.map(again), queries[0], 10);
+        }
+      }
+      BtFileIO.delete(tmp);
+    });
+    it("Refuses truncated or corrupt index files", () -> {
+      var tmp = BtFileIO.newTempDir();
+      var file = new File(tmp, "index.idx");
+      var index = new BtVectorIndex(8, BtVectorIndex.Metric.DOT, BtVectorIndex.Storage.INT8);
+      index.addAll(vectors(20, 8, 11));
+      index.write(file);
+      var bytes = Files.readAllBytes(file.toPath());
+      var broken = new File(tmp, "broken.idx");
+      Files.write(broken.toPath(), Arrays.copyOf(bytes, bytes.length - 3));
+      assertThrows(IOException.class, () -> BtVectorIndex.map(broken));
+      Files.write(broken.toPath(), Arrays.copyOf(bytes, 10));
+      assertThrows(IOException.class, () -> BtVectorIndex.map(broken));
+      for (int at : new int[] {0, 4, 8, 12, 16, 20}) { // Magic, version, dimensions, storage, metric and count
+        var corrupt = bytes.clone();
+        corrupt[at + 3] ^= 0x40;
+        Files.write(broken.toPath(), corrupt);
+        assertThrows(IOException.class, () -> BtVectorIndex.map(broken));
+      }
+      assertEquals(20, BtVectorIndex.map(file).size());
+      BtFileIO.delete(tmp);
+    });
+    it("Merges the results of parallel slices like a single scan", () -> {
+      var index = new BtVectorIndex(8, BtVectorIndex.Metric.DOT, BtVectorIndex.Storage.FLOAT32);
+      var data = vectors(20000, 8, 7);
+      data[19999] = data[5].clone(); // A tie across slices
+      index.addAll(data);
+      assertRanked(index, data[5], 25, 0);
+      assertRanked(index, data[5], data.length, 0);
+    });
+  }
+}
@@ -0,0 +1,119 @@
+import io.vacco.bertastic.*;
+import j8spec.annotation.DefinedOrder;
+import j8spec.junit.J8SpecRunner;
+import org.junit.runner.RunWith;
+
+import java.util.Random;
+
+import static j8spec.J8Spec.*;
+import static org.junit.Assert.*;
+
+@DefinedOrder
+@RunWith(J8SpecRunner.class)
+public class BtVectorsTest {
+
+  static float[] vector(Random random, int dimensions) {
+    var v = new float[dimensions];
+    for (int i = 0; i < dimensions; i++) {
+      v[i] = (float) random.nextGaussian();
+    }
+    return v;
+  }
+
+  static double dot(float[] a, float[] b) {
+    double sum = 0;
+    for (int i = 0; i < a.length; i++) {
+      sum += (double) a[i] * b[i];
+    }
+    return sum;
+  }
+
+  static float[] fromHalf(short[] half) {
+    var out = new float[half.length];
+    for (int i = 0; i < half.length; i++) {
+      out[i] = BtVectors.fromHalf(half[i]);
+    }
+    return out;
+  }
+
+  static {
+    it("Converts every half-precision value to float and back", () -> {
+      for (int bits = 0; bits <= 0xFFFF; bits++) {
+        var half = (short) bits;
+        float f = BtVectors.fromHalf(half);
+        boolean nan = (bits & 0x7C00) == 0x7C00 && (bits & 0x3FF) != 0;
+        if (nan) {
+          assertTrue(Float.isNaN(f));
+          assertTrue(Float.isNaN(BtVectors.fromHalf(BtVectors.toHalf(f))));
+        } else {
+          assertEquals(bits, BtVectors.toHalf(f) & 0xFFFF);
+        }
+      }
+      assertEquals(1, BtVectors.fromHalf((short) 0x3C00), 0);
+      assertEquals(0x1p-24f, BtVectors.fromHalf((short) 0x0001), 0); // Smallest subnormal
+      assertEquals(0x1p-14f - 0x1p-24f, BtVectors.fromHalf((short) 0x03FF), 0); // Largest subnormal
+      assertEquals(65504, BtVectors.fromHalf((short) 0x7BFF), 0);
+      assertEquals(Float.POSITIVE_INFINITY, BtVectors.fromHalf((short) 0x7C00), 0);
+      assertEquals(Float.NEGATIVE_INFINITY, BtVectors.fromHalf((short) 0xFC00), 0);
+      assertEquals(0x8000, BtVectors.toHalf(-0f) & 0xFFFF);
+    });
+    it("Rounds floats to the nearest half-precision value, ties to even", () -> {
+      for (int bits = 0; bits < 0x7BFF; bits++) { // Every finite non-negative half below the largest, and the gap above it
+        float low = BtVectors.fromHalf((short) bits), high = BtVectors.fromHalf((short) (bits + 1));
+        float mid = low + (high - low) / 2; // Exact, halves have fewer mantissa bits than floats
+        int even = (bits & 1) == 0 ? bits : bits + 1;
+        assertEquals(bits, BtVectors.toHalf(Math.nextDown(mid)) & 0xFFFF);
+        assertEquals(even, BtVectors.toHalf(mid) & 0xFFFF);
+        assertEquals(bits + 1, BtVectors.toHalf(Math.nextUp(mid)) & 0xFFFF);
+        assertEquals(bits | 0x8000, BtVectors.toHalf(-Math.nextDown(mid)) & 0xFFFF);
+        assertEquals(even | 0x8000, BtVectors.toHalf(-mid) & 0xFFFF);
+      }
+      assertEquals(0x7BFF, BtVectors.toHalf(Math.nextDown(65520f)) & 0xFFFF);
+      assertEquals(0x7C00, BtVectors.toHalf(65520) & 0xFFFF); // Halfway past the largest half, so it overflows
+      assertEquals(0x7C00, BtVectors.toHalf(Float.MAX_VALUE) & 0xFFFF);
+      assertEquals(0x7C00, BtVectors.toHalf(Float.POSITIVE_INFINITY) & 0xFFFF);
+      assertEquals(0xFC00, BtVectors.toHalf(Float.NEGATIVE_INFINITY) & 0xFFFF);
+      assertEquals(0, BtVectors.toHalf(Float.MIN_VALUE) & 0xFFFF);
+      assertEquals(0x8000, BtVectors.toHalf(-0x1p-26f) & 0xFFFF);
+      assertTrue(Float.isNaN(BtVectors.fromHalf(BtVectors.toHalf(Float.NaN))));
+      assertTrue(Float.isNaN(BtVectors.fromHalf(BtVectors.toHalf(Float.intBitsToFloat(0x7F800001))))); // NaN payload below half precision
+    });
+    it("Computes dot products and cosines of half-precision vectors", () -> {
+      var random = new Random(18);
+      for (int n = 0; n < 100; n++) {
+        var a = vector(random, 64);
+        var b = vector(random, 64);
+        short[] ha = BtVectors.toHalf(a), hb = BtVectors.toHalf(b);
+        float[] fa = fromHalf(ha), fb = fromHalf(hb);
+        assertEquals(dot(fa, fb), BtVectors.dot(ha, hb), 1e-3);
+        assertEquals(dot(a, fb), BtVectors.dot(a, hb), 1e-3);
+        assertEquals(dot(a, b), BtVectors.dot(ha, hb), 0.05);
+        assertEquals(BtVectors.cosine(a, b), BtVectors.cosine(ha, hb), 1e-3);
+      }
+      assertEquals(1, BtVectors.cosine(BtVectors.toHalf(new float[] {3, 4}), BtVectors.toHalf(new float[] {6, 8})), 1e-6);
+      assertEquals(0, BtVectors.cosine(new short[2], BtVectors.toHalf(new float[] {1, 1})), 0);
+      assertThrows(IllegalArgumentException.class, () -> BtVectors.dot(new short[2], new short[3]));
+    });
+    it("Computes dot products and cosines of int8 vectors", () -> {
+      var random = new Random(8);
+      for (int n = 0; n < 100; n++) {
+        var a = vector(random, 64);
+        var b = vector(random, 64);
+        BtInt8Vector qa = BtInt8Vector.of(a), qb = BtInt8Vector.of(b);
+        float[] fa = qa.toFloats(), fb = qb.toFloats();
+        assertEquals(dot(fa, fb), BtVectors.dot(qa, qb), 1e-3);
+        assertEquals(dot(a, fb), BtVectors.dot(a, qb), 1e-3);
+        assertEquals(dot(a, b), BtVectors.dot(qa, qb), 0.01 * Math.sqrt(dot(a, a) * dot(b, b))); // Within quantization error
+        assertEquals(dot(fa, fb) / Math.sqrt(dot(fa, fa) * dot(fb, fb)), BtVectors.cosine(qa, qb), 1e-5);
+        assertEquals(BtVectors.cosine(a, b), BtVectors.cosine(qa, qb), 0.01);
+      }
+      var q = BtInt8Vector.of(new float[] {0.5f, -1, 0.25f});
+      assertArrayEquals(new byte[] {64, -127, 32}, q.values);
+      assertEquals(1, BtVectors.cosine(q, q), 1e-6);
+      var zero = BtInt8Vector.of(new float[3]);
+      assertEquals(0, zero.scale, 0);
+      assertEquals(0, BtVectors.cosine(zero, q), 0);
+      assertThrows(IllegalArgumentException.class, () -> BtVectors.dot(new float[2], q));
+    });
+  }
+}